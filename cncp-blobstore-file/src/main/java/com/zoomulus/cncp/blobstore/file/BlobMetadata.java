@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zoomulus.cncp.blobstore.BlobChecksums;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+class BlobMetadata {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private @Nullable final Long crc32c;
+    private @Nullable final String sha256;
+
+    @JsonCreator
+    BlobMetadata(@JsonProperty("crc32c") @Nullable final Long crc32c,
+                 @JsonProperty("sha256") @JsonAlias("digest") @Nullable final String sha256) {
+        this.crc32c = crc32c;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * The CRC-32C of the blob, or null in a sidecar written before CRCs were
+     * recorded, which only holds the SHA-256.
+     */
+    @JsonProperty("crc32c")
+    @Nullable
+    Long getCrc32c() {
+        return crc32c;
+    }
+
+    @JsonProperty("sha256")
+    @Nullable
+    String getSha256() {
+        return sha256;
+    }
+
+    @NotNull
+    BlobChecksums toChecksums() {
+        if (null == crc32c) {
+            throw new IllegalStateException("No CRC-32C recorded");
+        }
+        return new BlobChecksums(crc32c, sha256);
+    }
+
+    @NotNull
+    static Optional<BlobMetadata> read(@NotNull final Path path) throws IOException {
+        try {
+            return Optional.of(MAPPER.readValue(Files.readAllBytes(path), BlobMetadata.class));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    void write(@NotNull final Path path) throws IOException {
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, MAPPER.writeValueAsBytes(this));
+            Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
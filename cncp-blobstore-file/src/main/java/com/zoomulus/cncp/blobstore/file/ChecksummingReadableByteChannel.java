@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * Updates a checksum and/or a message digest with every byte read through it,
+ * so integrity values are computed inline while data is being transferred.
+ */
+class ChecksummingReadableByteChannel implements ReadableByteChannel {
+    private @NotNull final ReadableByteChannel delegate;
+    private @Nullable final Checksum checksum;
+    private @Nullable final MessageDigest digest;
+
+    ChecksummingReadableByteChannel(@NotNull final ReadableByteChannel delegate,
+                                    @Nullable final Checksum checksum,
+                                    @Nullable final MessageDigest digest) {
+        this.delegate = delegate;
+        this.checksum = checksum;
+        this.digest = digest;
+    }
+
+    @Override
+    public int read(@NotNull final ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = delegate.read(dst);
+        if (read > 0) {
+            if (null != checksum) {
+                ByteBuffer consumed = dst.duplicate();
+                consumed.position(start).limit(start + read);
+                checksum.update(consumed);
+            }
+            if (null != digest) {
+                ByteBuffer consumed = dst.duplicate();
+                consumed.position(start).limit(start + read);
+                digest.update(consumed);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
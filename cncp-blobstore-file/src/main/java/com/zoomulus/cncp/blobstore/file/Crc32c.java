@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+/**
+ * Combines the CRC32Cs of consecutive ranges into the CRC32C of the whole,
+ * so a blob assembled from separately checksummed parts never has to be
+ * read again to checksum it.  This is zlib's crc32_combine with the
+ * Castagnoli polynomial.
+ */
+final class Crc32c {
+    private static final long POLYNOMIAL = 0x82f63b78L;
+
+    private Crc32c() {
+    }
+
+    /**
+     * The CRC32C of a range with CRC32C {@code crc1} followed by a range of
+     * {@code length2} bytes with CRC32C {@code crc2}.
+     */
+    static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // The operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+        // Apply one zero byte, two, four... for each set bit of the length
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (0 == length2) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (0 != length2);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(final long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; 0 != vector; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(final long[] square, final long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
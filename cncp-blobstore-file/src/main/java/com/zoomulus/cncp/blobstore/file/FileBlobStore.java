@@ -18,30 +18,212 @@
 package com.zoomulus.cncp.blobstore.file;
 
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
 import com.zoomulus.cncp.blobstore.Blob;
+import com.zoomulus.cncp.blobstore.BlobChecksums;
 import com.zoomulus.cncp.blobstore.BlobIdentifier;
 import com.zoomulus.cncp.blobstore.BlobNotFoundException;
 import com.zoomulus.cncp.blobstore.BlobStore;
+import com.zoomulus.cncp.blobstore.ChecksumVerifyingInputStream;
 import com.zoomulus.cncp.blobstore.DirectReadContext;
 import com.zoomulus.cncp.blobstore.DirectWriteContext;
+import com.zoomulus.cncp.blobstore.DirectWriteToken;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32C;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Stores blobs as files beneath a root directory.
+ *
+ * Blob files are spread across a two-level fan-out directory tree keyed by
+ * a hash of the blob's unique id, so no single directory grows large enough
+ * to slow down lookups.  Writes are staged in a temporary file and moved into
+ * place atomically once complete, so readers never see a partial blob.
+ *
+ * In content-addressed mode each blob's bytes are hashed with SHA-256 as they
+ * are written and stored only once, under their digest.  The blob path is a
+ * hard link to the shared content file, so the file system's link count is
+ * the reference count and the bytes are freed when the last blob referring
+ * to them is deleted.  This mode requires a file system with POSIX hard links.
+ *
+ * In either mode {@link #copy} hard links the new blob to the existing one's
+ * file where the file system allows, so copying a blob of any size costs a
+ * link and a metadata file.  Rewriting either blob replaces its file rather
+ * than writing into it, so the other keeps the original bytes.
+ *
+ * A CRC32C of every blob, and optionally its SHA-256, is computed inline while
+ * the blob is written and kept in a metadata file next to it.  Full reads are
+ * checked against the CRC32C as they stream, and {@link #verify} re-checks a
+ * stored blob without needing the original data.
+ *
+ * Direct write uploads that are neither completed nor aborted are discarded
+ * once idle for longer than the upload expiry, checked when the store is
+ * opened and at most hourly as new uploads start.
+ */
 public class FileBlobStore implements BlobStore {
-    private Map<String, Blob> blobs = Maps.newConcurrentMap();
+    private static Logger LOG = LoggerFactory.getLogger(FileBlobStore.class);
+
+    public enum Option {
+        CONTENT_ADDRESSED,
+        SHA256
+    }
+
+    static final String BLOBS_DIR = "blobs";
+    static final String CONTENT_DIR = "content";
+    static final String TMP_DIR = "tmp";
+    static final String UPLOADS_DIR = "uploads";
+    static final int FAN_OUT_LEVELS = 2;
+    static final int FAN_OUT_WIDTH = 2;
+
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String SECRET_FILE = ".secret";
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
+    private static final long EXPIRY_CHECK_INTERVAL_MILLIS = Duration.ofHours(1).toMillis();
+
+    public static final Duration DEFAULT_UPLOAD_EXPIRY = Duration.ofDays(7);
+
+    private final Map<String, Blob> blobs = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, FileUploadSession> uploads = Maps.newConcurrentMap();
 
     private @NotNull final Path rootPath;
+    private @NotNull final Path blobsPath;
+    private @NotNull final Path tmpPath;
+    private @NotNull final Path uploadsPath;
+    private @NotNull final byte[] secretKey;
+    private @Nullable final Path contentPath;
+    private final boolean computeSha256;
+    private final Striped<Lock> contentLocks = Striped.lock(64);
+    private volatile Duration uploadExpiry = DEFAULT_UPLOAD_EXPIRY;
+    private final AtomicLong nextExpiryCheck = new AtomicLong();
 
     @Inject
-    public FileBlobStore(@NotNull @Named("root.path") final Path rootPath) {
+    public FileBlobStore(@NotNull @Named("root.path") final Path rootPath) throws IOException {
+        this(rootPath, new Option[0]);
+    }
+
+    public FileBlobStore(@NotNull final Path rootPath, @NotNull final Option... options) throws IOException {
+        Set<Option> optionSet = options.length == 0 ? EnumSet.noneOf(Option.class) : EnumSet.copyOf(Arrays.asList(options));
+        boolean contentAddressed = optionSet.contains(Option.CONTENT_ADDRESSED);
         this.rootPath = rootPath;
+        // Content addressing keys content by its SHA-256, so it is always computed then.
+        computeSha256 = contentAddressed || optionSet.contains(Option.SHA256);
+        blobsPath = Files.createDirectories(rootPath.resolve(BLOBS_DIR));
+        tmpPath = Files.createDirectories(rootPath.resolve(TMP_DIR));
+        uploadsPath = Files.createDirectories(rootPath.resolve(UPLOADS_DIR));
+        secretKey = loadSecretKey(uploadsPath.resolve(SECRET_FILE));
+        if (contentAddressed) {
+            if (! rootPath.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+                throw new IllegalArgumentException(String.format(
+                        "Content-addressed mode requires hard link support, not available for %s", rootPath));
+            }
+            contentPath = Files.createDirectories(rootPath.resolve(CONTENT_DIR));
+        }
+        else {
+            contentPath = null;
+        }
+        expireUploadsIfDue();
+    }
+
+    @NotNull
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * Sets how long a direct write upload may go without a part arriving
+     * before it is discarded.
+     */
+    public void setUploadExpiry(@NotNull final Duration uploadExpiry) {
+        this.uploadExpiry = uploadExpiry;
+    }
+
+    /**
+     * Discards every upload, loaded or not, that has been idle for longer
+     * than the given time.
+     *
+     * @return the number of uploads discarded
+     */
+    public int expireUploads(@NotNull final Duration maxIdle) throws IOException {
+        long cutoff = System.currentTimeMillis() - maxIdle.toMillis();
+        int expired = 0;
+        synchronized (uploads) {
+            for (String uploadId : FileUploadSession.list(uploadsPath)) {
+                FileUploadSession session = uploads.get(uploadId);
+                if (null == session) {
+                    if (FileUploadSession.getLastModified(uploadId, uploadsPath) < cutoff) {
+                        FileUploadSession.delete(uploadId, uploadsPath);
+                        expired++;
+                    }
+                }
+                else if (session.getLastActivity() < cutoff && uploads.remove(uploadId, session)) {
+                    session.discard();
+                    expired++;
+                }
+            }
+        }
+        if (expired > 0) {
+            LOG.info("Discarded {} direct write uploads idle for more than {}", expired, maxIdle);
+        }
+        return expired;
+    }
+
+    private void expireUploadsIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextExpiryCheck.get();
+        if (now < due || ! nextExpiryCheck.compareAndSet(due, now + EXPIRY_CHECK_INTERVAL_MILLIS)) {
+            return;
+        }
+        try {
+            expireUploads(uploadExpiry);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to expire direct write uploads in {}", uploadsPath, e);
+        }
+    }
+
+    public boolean isContentAddressed() {
+        return null != contentPath;
     }
 
     @Override
@@ -55,43 +237,513 @@ public class FileBlobStore implements BlobStore {
     public @NotNull Blob getBlob(@NotNull BlobIdentifier blobId) throws BlobNotFoundException {
         Blob b = blobs.get(blobId.toString());
         if (null == b) {
-            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()));
+            if (! exists(blobId)) {
+                throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()));
+            }
+            b = new Blob(this, blobId);
         }
         return b;
     }
 
     @Override
     public void write(@NotNull BlobIdentifier blobId, @NotNull InputStream inputStream) throws IOException {
-
+        Path tmp = Files.createTempFile(tmpPath, "blob-", ".tmp");
+        try {
+            CRC32C crc = new CRC32C();
+            MessageDigest digest = computeSha256 ? newMessageDigest() : null;
+            ReadableByteChannel in = new ChecksummingReadableByteChannel(Channels.newChannel(inputStream), crc, digest);
+            try (FileChannel out = FileChannel.open(tmp, WRITE)) {
+                transferFrom(in, out);
+                out.force(false);
+            }
+            commit(blobId, tmp, new BlobMetadata(crc.getValue(), null == digest ? null : toHex(digest.digest())));
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
     }
 
     @Override
     public @NotNull InputStream read(@NotNull BlobIdentifier blobId) throws BlobNotFoundException {
-        return null;
+        Optional<BlobMetadata> metadata = readMetadata(blobId);
+        InputStream inputStream = Channels.newInputStream(openChannel(blobId));
+        return metadata.isPresent() && null != metadata.get().getCrc32c()
+                ? new ChecksumVerifyingInputStream(inputStream, metadata.get().getCrc32c(), blobId.toString())
+                : inputStream;
+    }
+
+    @Override
+    public @NotNull InputStream read(@NotNull BlobIdentifier blobId, long offset, long length) throws BlobNotFoundException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range offset %d length %d", offset, length));
+        }
+        FileChannel channel = openChannel(blobId);
+        try {
+            long size = channel.size();
+            long start = Math.min(offset, size);
+            return new FileChannelRangeInputStream(channel, start, Math.min(length, size - start), true);
+        }
+        catch (IOException e) {
+            closeQuietly(channel);
+            throw new BlobNotFoundException(String.format("Unable to read blob [%s]", blobId.toString()), e);
+        }
     }
 
     @Override
     public boolean exists(@NotNull BlobIdentifier blobId) {
-        return false;
+        return Files.isRegularFile(getBlobPath(blobId));
+    }
+
+    @Override
+    public @NotNull Optional<BlobChecksums> getChecksums(@NotNull BlobIdentifier blobId) throws BlobNotFoundException {
+        if (! exists(blobId)) {
+            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()));
+        }
+        Optional<BlobMetadata> metadata = readMetadata(blobId);
+        if (metadata.isPresent() && null == metadata.get().getCrc32c()) {
+            metadata = completeMetadata(blobId, metadata.get());
+        }
+        return metadata.map(BlobMetadata::toChecksums);
+    }
+
+    @Override
+    public boolean verify(@NotNull BlobIdentifier blobId) throws BlobNotFoundException {
+        Optional<BlobMetadata> expected = readMetadata(blobId);
+        if (expected.isEmpty()) {
+            if (! exists(blobId)) {
+                throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()));
+            }
+            LOG.warn("No checksums recorded for blob {}", blobId);
+            return false;
+        }
+        if (null == expected.get().getCrc32c()) {
+            return completeMetadata(blobId, expected.get()).isPresent();
+        }
+        try {
+            BlobMetadata actual = checksumsOf(getBlobPath(blobId), null != expected.get().getSha256());
+            if (! actual.getCrc32c().equals(expected.get().getCrc32c())
+                    || ! Objects.equals(actual.getSha256(), expected.get().getSha256())) {
+                LOG.warn("Blob {} is corrupt: expected {}, found {}", blobId,
+                        expected.get().toChecksums(), actual.toChecksums());
+                return false;
+            }
+            return true;
+        }
+        catch (NoSuchFileException e) {
+            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()), e);
+        }
+        catch (IOException e) {
+            throw new BlobNotFoundException(String.format("Unable to read blob [%s]", blobId.toString()), e);
+        }
+    }
+
+    /**
+     * Adds the CRC-32C to a sidecar written before CRCs were recorded, once
+     * the blob is found to still match the SHA-256 the sidecar holds.
+     *
+     * @return the completed metadata, or empty if the blob does not match
+     */
+    @NotNull
+    private Optional<BlobMetadata> completeMetadata(@NotNull final BlobIdentifier blobId,
+                                                    @NotNull final BlobMetadata legacy) throws BlobNotFoundException {
+        if (null == legacy.getSha256()) {
+            LOG.warn("No checksums recorded for blob {}", blobId);
+            return Optional.empty();
+        }
+        Path blobPath = getBlobPath(blobId);
+        try {
+            Object fileKey = Files.readAttributes(blobPath, BasicFileAttributes.class).fileKey();
+            BlobMetadata actual = checksumsOf(blobPath, true);
+            if (! legacy.getSha256().equals(actual.getSha256())) {
+                LOG.warn("Blob {} is corrupt: expected sha256={}, found {}", blobId, legacy.getSha256(), actual.toChecksums());
+                return Optional.empty();
+            }
+            // Leave the sidecar alone if the blob has been replaced meanwhile
+            if (Objects.equals(fileKey, Files.readAttributes(blobPath, BasicFileAttributes.class).fileKey())) {
+                actual.write(getMetadataPath(blobPath));
+            }
+            return Optional.of(actual);
+        }
+        catch (NoSuchFileException e) {
+            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()), e);
+        }
+        catch (IOException e) {
+            throw new BlobNotFoundException(String.format("Unable to read blob [%s]", blobId.toString()), e);
+        }
     }
 
     @Override
     public boolean delete(@NotNull BlobIdentifier blobId) {
+        blobs.remove(blobId.toString());
+        try {
+            Path blobPath = getBlobPath(blobId);
+            Optional<BlobMetadata> metadata = BlobMetadata.read(getMetadataPath(blobPath));
+            boolean deleted = Files.deleteIfExists(blobPath);
+            Files.deleteIfExists(getMetadataPath(blobPath));
+            if (isContentAddressed() && metadata.isPresent() && null != metadata.get().getSha256()) {
+                releaseContent(metadata.get().getSha256());
+            }
+            return deleted;
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to delete blob {}", blobId, e);
+        }
         return false;
     }
 
+    @Override
+    public @NotNull Blob copy(@NotNull BlobIdentifier blobId, @NotNull String name) throws BlobNotFoundException {
+        Path source = getBlobPath(blobId);
+        Blob blob = new Blob(this, name, blobId.getLength());
+        Path target = getBlobPath(blob.getId());
+        try {
+            Optional<BlobMetadata> metadata = BlobMetadata.read(getMetadataPath(source));
+            Files.createDirectories(target.getParent());
+            linkOrCopy(source, target);
+            if (metadata.isPresent()) {
+                metadata.get().write(getMetadataPath(target));
+            }
+            return blob;
+        }
+        catch (NoSuchFileException e) {
+            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()), e);
+        }
+        catch (IOException e) {
+            throw new BlobNotFoundException(String.format("Unable to copy blob [%s]", blobId.toString()), e);
+        }
+    }
+
+    private void linkOrCopy(@NotNull final Path source, @NotNull final Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        }
+        catch (UnsupportedOperationException e) {
+            LOG.debug("Hard links unsupported at {}, copying blob data", rootPath);
+            Path tmp = Files.createTempFile(tmpPath, "blob-", ".tmp");
+            try {
+                Files.copy(source, tmp, REPLACE_EXISTING);
+                Files.move(tmp, target, ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
     @Override
     public @Nullable DirectWriteContext getDirectWriteContext(@NotNull BlobIdentifier blobId) {
+        expireUploadsIfDue();
+        String uploadId = UUID.randomUUID().toString();
+        try {
+            FileUploadSession session = FileUploadSession.create(blobId.toString(), uploadId,
+                    new DirectWriteToken(blobId.toString(), uploadId).encode(secretKey),
+                    uploadsPath, blobId.getLength(), computeSha256);
+            uploads.put(uploadId, session);
+            return new FileDirectWriteContext(session);
+        }
+        catch (IOException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to start direct write for blob {}", blobId, e);
+        }
+        return null;
+    }
+
+    @Override
+    public @Nullable DirectWriteContext resumeDirectWrite(@NotNull BlobIdentifier blobId, @NotNull String encodedToken) {
+        try {
+            Optional<FileUploadSession> session = findUpload(blobId, encodedToken);
+            if (session.isPresent()) {
+                return new FileDirectWriteContext(session.get());
+            }
+        }
+        catch (IOException | IllegalArgumentException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to resume direct write for blob {}", blobId, e);
+        }
         return null;
     }
 
     @Override
     public boolean endDirectWrite(@NotNull BlobIdentifier blobId, @NotNull DirectWriteContext ctx) {
+        try {
+            Optional<FileUploadSession> found = findUpload(blobId, ctx.getEncodedToken());
+            if (found.isEmpty()) {
+                return false;
+            }
+            FileUploadSession session = found.get();
+            if (! session.isComplete()) {
+                LOG.warn("Direct write for upload {} is missing parts {}", session.getUploadId(), session.getMissingParts());
+                return false;
+            }
+            Optional<BlobMetadata> checksums = session.checksums();
+            if (checksums.isEmpty()) {
+                LOG.warn("Direct write for upload {} has parts {} that no longer match their checksums",
+                        session.getUploadId(), session.getMissingParts());
+                return false;
+            }
+            if (! uploads.remove(session.getUploadId(), session)) {
+                return false;
+            }
+            session.finish();
+            commit(blobId, session.getDataPath(), checksums.get());
+            session.discard();
+            return true;
+        }
+        catch (IOException | IllegalArgumentException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to complete direct write for blob {}", blobId, e);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean abortDirectWrite(@NotNull BlobIdentifier blobId, @NotNull DirectWriteContext ctx) {
+        try {
+            Optional<FileUploadSession> found = findUpload(blobId, ctx.getEncodedToken());
+            if (found.isEmpty() || ! uploads.remove(found.get().getUploadId(), found.get())) {
+                return false;
+            }
+            found.get().discard();
+            return true;
+        }
+        catch (IOException | IllegalArgumentException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to abort direct write for blob {}", blobId, e);
+        }
         return false;
     }
 
+    @NotNull
+    private Optional<FileUploadSession> findUpload(@NotNull final BlobIdentifier blobId, @NotNull final String encodedToken)
+            throws IOException, DirectWriteToken.SigningException {
+        DirectWriteToken token = DirectWriteToken.fromEncodedString(encodedToken, secretKey);
+        if (! blobId.toString().equals(token.getBlobId())) {
+            LOG.warn("Direct write token does not match blob {}", blobId);
+            return Optional.empty();
+        }
+        FileUploadSession session = uploads.get(token.getUploadId());
+        if (null == session) {
+            // Not active in this process; it may have been started before a restart.
+            synchronized (uploads) {
+                session = uploads.get(token.getUploadId());
+                if (null == session) {
+                    Optional<FileUploadSession> loaded = FileUploadSession.load(token.getUploadId(), uploadsPath, computeSha256);
+                    if (loaded.isEmpty()) {
+                        LOG.warn("No direct write in progress for upload {}", token.getUploadId());
+                        return Optional.empty();
+                    }
+                    session = loaded.get();
+                    uploads.put(token.getUploadId(), session);
+                }
+            }
+        }
+        return Optional.of(session);
+    }
+
     @Override
     public @Nullable DirectReadContext getDirectReadContext(@NotNull BlobIdentifier blobId) throws BlobNotFoundException {
-        return null;
+        FileChannel channel = openChannel(blobId);
+        try {
+            return new FileDirectReadContext(channel);
+        }
+        catch (IOException e) {
+            closeQuietly(channel);
+            throw new BlobNotFoundException(String.format("Unable to read blob [%s]", blobId.toString()), e);
+        }
+    }
+
+    @NotNull
+    Path getBlobPath(@NotNull final BlobIdentifier blobId) {
+        String hash = Hashing.sha256().hashString(blobId.getUniqueId(), StandardCharsets.UTF_8).toString();
+        Path path = blobsPath;
+        for (int i=0; i<FAN_OUT_LEVELS; i++) {
+            path = path.resolve(hash.substring(i * FAN_OUT_WIDTH, (i+1) * FAN_OUT_WIDTH));
+        }
+        return path.resolve(hash);
+    }
+
+    @NotNull
+    Path getContentPath(@NotNull final String digest) {
+        Path path = contentPath;
+        for (int i=0; i<FAN_OUT_LEVELS; i++) {
+            path = path.resolve(digest.substring(i * FAN_OUT_WIDTH, (i+1) * FAN_OUT_WIDTH));
+        }
+        return path.resolve(digest);
+    }
+
+    @NotNull
+    private static Path getMetadataPath(@NotNull final Path blobPath) {
+        return blobPath.resolveSibling(blobPath.getFileName() + METADATA_SUFFIX);
+    }
+
+    @NotNull
+    private Optional<BlobMetadata> readMetadata(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException {
+        try {
+            return BlobMetadata.read(getMetadataPath(getBlobPath(blobId)));
+        }
+        catch (IOException e) {
+            throw new BlobNotFoundException(String.format("Unable to read metadata for blob [%s]", blobId.toString()), e);
+        }
+    }
+
+    private void commit(@NotNull final BlobIdentifier blobId,
+                        @NotNull final Path tmp,
+                        @NotNull final BlobMetadata metadata) throws IOException {
+        if (isContentAddressed()) {
+            commitContent(blobId, tmp, metadata);
+        }
+        else {
+            commitFile(blobId, tmp, metadata);
+        }
+    }
+
+    private void commitFile(@NotNull final BlobIdentifier blobId,
+                            @NotNull final Path tmp,
+                            @NotNull final BlobMetadata metadata) throws IOException {
+        Path blobPath = getBlobPath(blobId);
+        Path metadataPath = getMetadataPath(blobPath);
+        Files.createDirectories(blobPath.getParent());
+        // Drop stale checksums first so a replaced blob is never checked against them.
+        Files.deleteIfExists(metadataPath);
+        Files.move(tmp, blobPath, ATOMIC_MOVE, REPLACE_EXISTING);
+        metadata.write(metadataPath);
+    }
+
+    private void commitContent(@NotNull final BlobIdentifier blobId,
+                               @NotNull final Path tmp,
+                               @NotNull final BlobMetadata metadata) throws IOException {
+        String digest = metadata.getSha256();
+        Path blobPath = getBlobPath(blobId);
+        Path metadataPath = getMetadataPath(blobPath);
+        Files.createDirectories(blobPath.getParent());
+        Optional<BlobMetadata> previous = BlobMetadata.read(metadataPath);
+        Files.deleteIfExists(metadataPath);
+
+        Path target = getContentPath(digest);
+        Lock lock = contentLocks.get(digest);
+        lock.lock();
+        try {
+            if (Files.exists(target)) {
+                LOG.debug("Blob {} duplicates existing content {}", blobId, digest);
+            }
+            else {
+                Files.createDirectories(target.getParent());
+                Files.move(tmp, target, ATOMIC_MOVE);
+            }
+            // Link under a unique name first so that replacing an existing
+            // blob path is a single atomic rename.
+            Path link = blobPath.resolveSibling(blobPath.getFileName() + "." + UUID.randomUUID() + ".link");
+            Files.createLink(link, target);
+            try {
+                Files.move(link, blobPath, ATOMIC_MOVE, REPLACE_EXISTING);
+            }
+            finally {
+                Files.deleteIfExists(link);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        metadata.write(metadataPath);
+
+        if (previous.isPresent() && null != previous.get().getSha256() && ! previous.get().getSha256().equals(digest)) {
+            releaseContent(previous.get().getSha256());
+        }
+    }
+
+    private void releaseContent(@NotNull final String digest) throws IOException {
+        Path target = getContentPath(digest);
+        Lock lock = contentLocks.get(digest);
+        lock.lock();
+        try {
+            if (Files.exists(target) && getLinkCount(target) <= 1) {
+                LOG.debug("Releasing unreferenced content {}", digest);
+                Files.delete(target);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    static int getLinkCount(@NotNull final Path path) throws IOException {
+        return (Integer) Files.getAttribute(path, "unix:nlink");
+    }
+
+    @NotNull
+    private static BlobMetadata checksumsOf(@NotNull final Path path, boolean sha256) throws IOException {
+        CRC32C crc = new CRC32C();
+        MessageDigest digest = sha256 ? newMessageDigest() : null;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer.duplicate());
+                if (null != digest) {
+                    digest.update(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return new BlobMetadata(crc.getValue(), null == digest ? null : toHex(digest.digest()));
+    }
+
+    @NotNull
+    static String toHex(@NotNull final byte[] bytes) {
+        return BaseEncoding.base16().lowerCase().encode(bytes);
+    }
+
+    @NotNull
+    static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(String.format("Required digest algorithm %s is unavailable", DIGEST_ALGORITHM), e);
+        }
+    }
+
+    @NotNull
+    private FileChannel openChannel(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException {
+        try {
+            return FileChannel.open(getBlobPath(blobId), READ);
+        }
+        catch (NoSuchFileException e) {
+            throw new BlobNotFoundException(String.format("No such blob [%s] found", blobId.toString()), e);
+        }
+        catch (IOException e) {
+            throw new BlobNotFoundException(String.format("Unable to open blob [%s]", blobId.toString()), e);
+        }
+    }
+
+    @NotNull
+    private static byte[] loadSecretKey(@NotNull final Path secretPath) throws IOException {
+        // Upload tokens must stay valid across restarts for uploads to be
+        // resumable, so the signing key is kept with the store.
+        if (! Files.exists(secretPath)) {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            try {
+                Files.write(secretPath, secret, CREATE_NEW, WRITE);
+            }
+            catch (FileAlreadyExistsException e) {
+                LOG.debug("Secret key created concurrently at {}", secretPath);
+            }
+        }
+        return Files.readAllBytes(secretPath);
+    }
+
+    private static void closeQuietly(@NotNull final FileChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOG.debug("Unable to close channel", e);
+        }
+    }
+
+    private static long transferFrom(@NotNull final ReadableByteChannel in, @NotNull final FileChannel out) throws IOException {
+        long position = 0;
+        long transferred;
+        while ((transferred = out.transferFrom(in, position, TRANSFER_CHUNK_SIZE)) > 0) {
+            position += transferred;
+        }
+        return position;
     }
 }
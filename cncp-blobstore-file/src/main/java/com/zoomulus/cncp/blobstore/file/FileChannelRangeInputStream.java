@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams a byte range of a file using positional reads, so reading a range
+ * never touches the bytes before it and never moves the channel's own position.
+ */
+class FileChannelRangeInputStream extends InputStream {
+    private @NotNull final FileChannel channel;
+    private final boolean closeChannel;
+    private long position;
+    private final long end;
+
+    FileChannelRangeInputStream(@NotNull final FileChannel channel, long offset, long length, boolean closeChannel) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int toRead = (int) Math.min(len, end - position);
+        int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, end - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+}
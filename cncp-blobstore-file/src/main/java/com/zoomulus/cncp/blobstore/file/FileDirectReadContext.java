@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import com.zoomulus.cncp.blobstore.DirectReadContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Direct read access to a blob file.
+ *
+ * The underlying {@link FileChannel} is handed out as-is, so callers can
+ * memory-map the blob or transfer it to another channel without the bytes
+ * passing through the Java heap.  Mapped buffers are limited to 2GB each;
+ * larger blobs must be mapped in windows with {@link #getByteBuffer(long, long)}.
+ */
+public class FileDirectReadContext implements DirectReadContext {
+    private @NotNull final FileChannel channel;
+    private final long length;
+
+    FileDirectReadContext(@NotNull final FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.length = channel.size();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return Channels.newInputStream(channel);
+    }
+
+    @Override
+    public InputStream getInputStream(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range offset %d length %d", offset, length));
+        }
+        long start = Math.min(offset, this.length);
+        return new FileChannelRangeInputStream(channel, start, Math.min(length, this.length - start), false);
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    @NotNull
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    @NotNull
+    public FileChannel getFileChannel() {
+        return channel;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer getByteBuffer() throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Blob of length %d is too large to map in a single buffer", length));
+        }
+        return getByteBuffer(0, length);
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer getByteBuffer(long position, long size) throws IOException {
+        if (position < 0 || size < 0 || position + size > length) {
+            throw new IllegalArgumentException(String.format("Cannot map range [%d, %d) of blob with length %d",
+                    position, position + size, length));
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    @Override
+    public long transferTo(@NotNull final WritableByteChannel target) throws IOException {
+        long position = 0;
+        while (position < length) {
+            long transferred = channel.transferTo(position, length - position, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+        }
+        return position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import com.zoomulus.cncp.blobstore.DirectWriteContext;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.OptionalLong;
+
+public class FileDirectWriteContext implements DirectWriteContext {
+    private @NotNull final FileUploadSession session;
+
+    FileDirectWriteContext(@NotNull final FileUploadSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void write(@NotNull final InputStream inputStream) throws IOException {
+        session.writeAll(inputStream);
+    }
+
+    @Override
+    public void writePart(int partNumber, @NotNull final InputStream inputStream) throws IOException {
+        session.writePart(partNumber, inputStream);
+    }
+
+    @Override
+    public long getPartSize() {
+        return session.getPartSize();
+    }
+
+    @Override
+    public int getPartCount() {
+        return session.getPartCount();
+    }
+
+    @Override
+    @NotNull
+    public List<Integer> getMissingParts() {
+        return session.getMissingParts();
+    }
+
+    @Override
+    @NotNull
+    public OptionalLong getPartChecksum(int partNumber) {
+        return session.getPartChecksum(partNumber);
+    }
+
+    @Override
+    @NotNull
+    public String getEncodedToken() {
+        return session.getEncodedToken();
+    }
+
+    @NotNull
+    String getUploadId() {
+        return session.getUploadId();
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Server side state of a multipart upload.
+ *
+ * All parts are written with positional writes into one preallocated staging
+ * file at offset {@code (partNumber - 1) * partSize}, so parts can arrive in
+ * any order and from any number of threads without contending with each other,
+ * and completing the upload needs no concatenation pass.
+ *
+ * The upload's fixed state is written once to a state file next to the
+ * staging file.  Once a part's bytes have been forced to disk a fixed-size
+ * record of it, with its CRC32C, is appended to a parts file, so each part
+ * costs one small append however many parts came before it.  An upload
+ * interrupted by a client disconnect or a restart can therefore be reloaded
+ * by its upload id and resumed by sending only the parts that are still
+ * missing.
+ *
+ * The blob's checksums are computed inline too.  Its CRC32C is combined from
+ * the part CRC32Cs, and if a SHA-256 is wanted each part that arrives in order
+ * extends a running digest as it streams in.  Completing the upload only reads
+ * back parts that arrived out of order, to extend the digest, and parts that
+ * were recorded before the session was loaded, to check them against their
+ * CRC32C; a part that no longer matches is dropped so it can be sent again.
+ *
+ * Uploads that are neither completed nor aborted are discarded by
+ * {@link FileBlobStore#expireUploads} once they have been idle long enough.
+ */
+class FileUploadSession {
+    static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+    static final int MAX_PARTS = 10000;
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String STATE_SUFFIX = ".session";
+    private static final String PARTS_SUFFIX = ".parts";
+    private static final int PART_RECORD_SIZE = 32;
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private @NotNull final UploadState state;
+    private @NotNull final Path dataPath;
+    private @NotNull final Path statePath;
+    private @NotNull final Path partsPath;
+    private @NotNull final FileChannel channel;
+    private @NotNull final FileChannel partsChannel;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    // Parts streamed in by this session, whose recorded CRC32C is known good
+    private final BitSet streamed = new BitSet();
+    // Running digest of parts 1 to digestedParts, if a SHA-256 is wanted
+    private @Nullable MessageDigest digest;
+    private int digestedParts;
+    private int digestGeneration;
+    private boolean digesting;
+
+    private FileUploadSession(@NotNull final UploadState state, @NotNull final Path uploadsPath, boolean sha256) throws IOException {
+        this.state = state;
+        this.digest = sha256 ? FileBlobStore.newMessageDigest() : null;
+        this.dataPath = uploadsPath.resolve(state.uploadId + DATA_SUFFIX);
+        this.statePath = uploadsPath.resolve(state.uploadId + STATE_SUFFIX);
+        this.partsPath = uploadsPath.resolve(state.uploadId + PARTS_SUFFIX);
+        this.channel = FileChannel.open(dataPath, CREATE, READ, WRITE);
+        this.partsChannel = FileChannel.open(partsPath, CREATE, WRITE, APPEND);
+        // transferFrom() refuses to write beyond the end of the file, so size
+        // the (sparse) staging file up front for parts that arrive out of order.
+        if (state.length > 0 && channel.size() < state.length) {
+            channel.write(ByteBuffer.allocate(1), state.length - 1);
+        }
+    }
+
+    @NotNull
+    static FileUploadSession create(@NotNull final String blobId,
+                                    @NotNull final String uploadId,
+                                    @NotNull final String encodedToken,
+                                    @NotNull final Path uploadsPath,
+                                    long length,
+                                    boolean sha256) throws IOException {
+        long partSize = Math.max(MIN_PART_SIZE, (length + MAX_PARTS - 1) / MAX_PARTS);
+        FileUploadSession session = new FileUploadSession(
+                new UploadState(blobId, uploadId, encodedToken, length, partSize, new TreeMap<>()), uploadsPath, sha256);
+        session.persist();
+        return session;
+    }
+
+    @NotNull
+    static Optional<FileUploadSession> load(@NotNull final String uploadId, @NotNull final Path uploadsPath, boolean sha256)
+            throws IOException {
+        try {
+            UploadState state = MAPPER.readValue(
+                    Files.readAllBytes(uploadsPath.resolve(uploadId + STATE_SUFFIX)), UploadState.class);
+            readParts(uploadsPath.resolve(uploadId + PARTS_SUFFIX), state.parts);
+            return Optional.of(new FileUploadSession(state, uploadsPath, sha256));
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * The ids of all uploads with files under the uploads directory, whether
+     * or not they are loaded.
+     */
+    @NotNull
+    static Set<String> list(@NotNull final Path uploadsPath) throws IOException {
+        Set<String> uploadIds = Sets.newHashSet();
+        try (Stream<Path> files = Files.list(uploadsPath)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                for (String suffix : new String[] { DATA_SUFFIX, STATE_SUFFIX, PARTS_SUFFIX }) {
+                    if (name.endsWith(suffix)) {
+                        uploadIds.add(name.substring(0, name.length() - suffix.length()));
+                    }
+                }
+            }
+        }
+        return uploadIds;
+    }
+
+    /**
+     * When an upload that is not loaded last changed, in epoch milliseconds.
+     */
+    static long getLastModified(@NotNull final String uploadId, @NotNull final Path uploadsPath) throws IOException {
+        long lastModified = 0;
+        for (String suffix : new String[] { DATA_SUFFIX, STATE_SUFFIX, PARTS_SUFFIX }) {
+            Path file = uploadsPath.resolve(uploadId + suffix);
+            if (Files.exists(file)) {
+                lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+            }
+        }
+        return lastModified;
+    }
+
+    static void delete(@NotNull final String uploadId, @NotNull final Path uploadsPath) throws IOException {
+        for (String suffix : new String[] { DATA_SUFFIX, STATE_SUFFIX, PARTS_SUFFIX }) {
+            Files.deleteIfExists(uploadsPath.resolve(uploadId + suffix));
+        }
+    }
+
+    @NotNull
+    String getBlobId() {
+        return state.blobId;
+    }
+
+    @NotNull
+    String getUploadId() {
+        return state.uploadId;
+    }
+
+    @NotNull
+    String getEncodedToken() {
+        return state.encodedToken;
+    }
+
+    @NotNull
+    Path getDataPath() {
+        return dataPath;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getPartSize() {
+        return state.partSize;
+    }
+
+    int getPartCount() {
+        return (int) Math.max(1, (state.length + state.partSize - 1) / state.partSize);
+    }
+
+    long getPartOffset(int partNumber) {
+        return (partNumber - 1) * state.partSize;
+    }
+
+    long getPartLength(int partNumber) {
+        return Math.min(state.partSize, state.length - getPartOffset(partNumber));
+    }
+
+    void writePart(int partNumber, @NotNull final InputStream inputStream) throws IOException {
+        if (partNumber < 1 || partNumber > getPartCount()) {
+            throw new IllegalArgumentException(String.format("Part number %d is out of range 1-%d for upload %s",
+                    partNumber, getPartCount(), state.uploadId));
+        }
+        lastActivity = System.currentTimeMillis();
+        long offset = getPartOffset(partNumber);
+        long length = getPartLength(partNumber);
+        CRC32C crc = new CRC32C();
+        MessageDigest inOrder = null;
+        int generation;
+        synchronized (state) {
+            if (null != digest && partNumber <= digestedParts) {
+                // Rewriting a part already digested invalidates the running digest
+                digest = FileBlobStore.newMessageDigest();
+                digestedParts = 0;
+                digestGeneration++;
+            }
+            generation = digestGeneration;
+            if (null != digest && partNumber == digestedParts + 1 && ! digesting) {
+                inOrder = cloneDigest(digest);
+                digesting = null != inOrder;
+            }
+        }
+        try {
+            ReadableByteChannel in = new ChecksummingReadableByteChannel(Channels.newChannel(inputStream), crc, inOrder);
+            long written = transfer(in, offset, length);
+            if (written == length && in.read(ByteBuffer.allocate(1)) > 0) {
+                written++;
+            }
+            if (written != length) {
+                throw new IOException(String.format("Part %d of upload %s was %d bytes, expected %d",
+                        partNumber, state.uploadId, written, length));
+            }
+            // The part only counts as received once its bytes are durable.
+            channel.force(false);
+            PartState part = new PartState(offset, length, crc.getValue());
+            synchronized (state) {
+                appendPart(partNumber, part);
+                state.parts.put(partNumber, part);
+                streamed.set(partNumber);
+                if (null != inOrder && generation == digestGeneration) {
+                    digest = inOrder;
+                    digestedParts = partNumber;
+                }
+            }
+        }
+        finally {
+            if (null != inOrder) {
+                synchronized (state) {
+                    digesting = false;
+                }
+            }
+        }
+        lastActivity = System.currentTimeMillis();
+    }
+
+    void writeAll(@NotNull final InputStream inputStream) throws IOException {
+        for (int partNumber = 1; partNumber <= getPartCount(); partNumber++) {
+            if (! isPartReceived(partNumber)) {
+                writePart(partNumber, ByteStreams.limit(inputStream, getPartLength(partNumber)));
+            }
+            else {
+                ByteStreams.skipFully(inputStream, getPartLength(partNumber));
+            }
+        }
+        if (inputStream.read() >= 0) {
+            throw new IOException(String.format("Upload %s is longer than the expected %d bytes",
+                    state.uploadId, state.length));
+        }
+    }
+
+    boolean isPartReceived(int partNumber) {
+        synchronized (state) {
+            return state.parts.containsKey(partNumber);
+        }
+    }
+
+    @NotNull
+    List<Integer> getMissingParts() {
+        List<Integer> missing = Lists.newArrayList();
+        synchronized (state) {
+            for (int partNumber = 1; partNumber <= getPartCount(); partNumber++) {
+                if (! state.parts.containsKey(partNumber)) {
+                    missing.add(partNumber);
+                }
+            }
+        }
+        return missing;
+    }
+
+    @NotNull
+    OptionalLong getPartChecksum(int partNumber) {
+        synchronized (state) {
+            PartState part = state.parts.get(partNumber);
+            return null == part ? OptionalLong.empty() : OptionalLong.of(part.crc32c);
+        }
+    }
+
+    boolean isComplete() {
+        synchronized (state) {
+            long received = 0;
+            for (Map.Entry<Integer, PartState> entry : state.parts.entrySet()) {
+                if (entry.getValue().offset != getPartOffset(entry.getKey())
+                        || entry.getValue().length != getPartLength(entry.getKey())) {
+                    return false;
+                }
+                received += entry.getValue().length;
+            }
+            return state.parts.size() == getPartCount() && received == state.length;
+        }
+    }
+
+    /**
+     * The checksums of the assembled upload, computed from what was gathered
+     * as the parts streamed in.  Only parts that were digested out of order or
+     * recorded before this session was loaded are read back.
+     *
+     * @return the checksums, or empty if a part read back no longer matched
+     *         its CRC32C and was dropped so it can be sent again
+     */
+    @NotNull
+    Optional<BlobMetadata> checksums() throws IOException {
+        MessageDigest whole;
+        int digested;
+        synchronized (state) {
+            whole = null == digest ? null : cloneDigest(digest);
+            digested = digestedParts;
+            if (null != digest && null == whole) {
+                whole = FileBlobStore.newMessageDigest();
+                digested = 0;
+            }
+        }
+        ByteBuffer buffer = null;
+        long crc = 0;
+        boolean intact = true;
+        for (int partNumber = 1; partNumber <= getPartCount(); partNumber++) {
+            PartState part;
+            boolean trusted;
+            synchronized (state) {
+                part = state.parts.get(partNumber);
+                trusted = streamed.get(partNumber);
+            }
+            boolean hash = null != whole && partNumber > digested;
+            if (! trusted || hash) {
+                if (null == buffer) {
+                    buffer = ByteBuffer.allocateDirect(VERIFY_BUFFER_SIZE);
+                }
+                if (! readPart(part, buffer, hash ? whole : null)) {
+                    dropPart(partNumber);
+                    intact = false;
+                    continue;
+                }
+            }
+            crc = Crc32c.combine(crc, part.crc32c, part.length);
+        }
+        if (! intact) {
+            return Optional.empty();
+        }
+        return Optional.of(new BlobMetadata(crc, null == whole ? null : FileBlobStore.toHex(whole.digest())));
+    }
+
+    private boolean readPart(@NotNull final PartState part, @NotNull final ByteBuffer buffer, @Nullable final MessageDigest digest)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        long position = part.offset;
+        long end = part.offset + part.length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            if (null != digest) {
+                digest.update(buffer);
+            }
+            position += read;
+        }
+        return crc.getValue() == part.crc32c;
+    }
+
+    @Nullable
+    private static MessageDigest cloneDigest(@NotNull final MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            // Parts are then digested by reading them back on completion
+            return null;
+        }
+    }
+
+    void finish() throws IOException {
+        channel.force(false);
+        channel.close();
+        partsChannel.close();
+    }
+
+    void discard() throws IOException {
+        channel.close();
+        partsChannel.close();
+        Files.deleteIfExists(dataPath);
+        Files.deleteIfExists(partsPath);
+        Files.deleteIfExists(statePath);
+    }
+
+    private void dropPart(int partNumber) throws IOException {
+        synchronized (state) {
+            streamed.clear(partNumber);
+            // A record with a negative length removes the part on reload
+            appendPart(partNumber, new PartState(getPartOffset(partNumber), -1, 0));
+            state.parts.remove(partNumber);
+        }
+    }
+
+    private void appendPart(int partNumber, @NotNull final PartState part) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(PART_RECORD_SIZE);
+        record.putInt(partNumber).putLong(part.offset).putLong(part.length).putLong(part.crc32c);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            partsChannel.write(record);
+        }
+        partsChannel.force(false);
+    }
+
+    /**
+     * Applies the part records in a parts file.  A torn record at the tail, as
+     * left by a crash in the middle of an append, is truncated away.
+     */
+    private static void readParts(@NotNull final Path partsPath, @NotNull final SortedMap<Integer, PartState> parts)
+            throws IOException {
+        if (! Files.exists(partsPath)) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(partsPath, READ, WRITE)) {
+            ByteBuffer record = ByteBuffer.allocate(PART_RECORD_SIZE);
+            long position = 0;
+            while (position + PART_RECORD_SIZE <= in.size()) {
+                record.clear();
+                while (record.hasRemaining()) {
+                    if (in.read(record, position + record.position()) < 0) {
+                        break;
+                    }
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(record.array(), 0, PART_RECORD_SIZE - 4);
+                record.flip();
+                int partNumber = record.getInt();
+                PartState part = new PartState(record.getLong(), record.getLong(), record.getLong());
+                if (record.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                if (part.length < 0) {
+                    parts.remove(partNumber);
+                }
+                else {
+                    parts.put(partNumber, part);
+                }
+                position += PART_RECORD_SIZE;
+            }
+            if (position < in.size()) {
+                in.truncate(position);
+            }
+        }
+    }
+
+    private void persist() throws IOException {
+        Path tmp = Files.createTempFile(statePath.getParent(), state.uploadId, ".tmp");
+        try {
+            Files.write(tmp, MAPPER.writeValueAsBytes(state));
+            Files.move(tmp, statePath, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private long transfer(@NotNull final ReadableByteChannel in, long offset, long count) throws IOException {
+        // transferFrom with an explicit position never moves the channel's
+        // own position, which is what makes concurrent part writes safe.
+        long written = 0;
+        long transferred;
+        while (written < count && (transferred = channel.transferFrom(in, offset + written, count - written)) > 0) {
+            written += transferred;
+        }
+        return written;
+    }
+
+    static class UploadState {
+        @JsonProperty final String blobId;
+        @JsonProperty final String uploadId;
+        @JsonProperty final String encodedToken;
+        @JsonProperty final long length;
+        @JsonProperty final long partSize;
+        @JsonProperty final SortedMap<Integer, PartState> parts;
+
+        @JsonCreator
+        UploadState(@JsonProperty("blobId") @NotNull final String blobId,
+                    @JsonProperty("uploadId") @NotNull final String uploadId,
+                    @JsonProperty("encodedToken") @NotNull final String encodedToken,
+                    @JsonProperty("length") long length,
+                    @JsonProperty("partSize") long partSize,
+                    @JsonProperty("parts") @NotNull final SortedMap<Integer, PartState> parts) {
+            this.blobId = blobId;
+            this.uploadId = uploadId;
+            this.encodedToken = encodedToken;
+            this.length = length;
+            this.partSize = partSize;
+            this.parts = parts;
+        }
+    }
+
+    static class PartState {
+        @JsonProperty final long offset;
+        @JsonProperty final long length;
+        @JsonProperty final long crc32c;
+
+        @JsonCreator
+        PartState(@JsonProperty("offset") long offset,
+                  @JsonProperty("length") long length,
+                  @JsonProperty("crc32c") long crc32c) {
+            this.offset = offset;
+            this.length = length;
+            this.crc32c = crc32c;
+        }
+    }
+}
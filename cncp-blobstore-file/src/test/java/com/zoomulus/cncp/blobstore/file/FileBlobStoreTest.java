@@ -0,0 +1,579 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore.file;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.zoomulus.cncp.blobstore.Blob;
+import com.zoomulus.cncp.blobstore.BlobChecksums;
+import com.zoomulus.cncp.blobstore.BlobCorruptedException;
+import com.zoomulus.cncp.blobstore.BlobNotFoundException;
+import com.zoomulus.cncp.blobstore.DirectReadContext;
+import com.zoomulus.cncp.blobstore.DirectWriteContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileBlobStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBlobStore blobStore;
+
+    @Before
+    public void setup() throws IOException {
+        blobStore = new FileBlobStore(folder.getRoot().toPath());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(System.currentTimeMillis()).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        byte[] data = randomBytes(1024 * 1024 + 17);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testWriteFromFile() throws IOException {
+        byte[] data = randomBytes(4096);
+        Path source = folder.newFile().toPath();
+        Files.write(source, data);
+
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        try (InputStream is = new FileInputStream(source.toFile())) {
+            blob.write(is);
+        }
+
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testBlobsAreSharded() throws IOException {
+        Blob blob = blobStore.createBlob("test blob", 10);
+        blob.write(new ByteArrayInputStream(randomBytes(10)));
+
+        Path blobPath = blobStore.getBlobPath(blob.getId());
+        assertTrue(Files.isRegularFile(blobPath));
+        Path relative = folder.getRoot().toPath().resolve(FileBlobStore.BLOBS_DIR).relativize(blobPath);
+        assertEquals(FileBlobStore.FAN_OUT_LEVELS + 1, relative.getNameCount());
+    }
+
+    @Test
+    public void testExistsAndDelete() throws IOException {
+        Blob blob = blobStore.createBlob("test blob", 10);
+        assertFalse(blobStore.exists(blob.getId()));
+        blob.write(new ByteArrayInputStream(randomBytes(10)));
+        assertTrue(blobStore.exists(blob.getId()));
+
+        assertTrue(blobStore.delete(blob.getId()));
+        assertFalse(blobStore.exists(blob.getId()));
+        assertFalse(blobStore.delete(blob.getId()));
+    }
+
+    @Test
+    public void testReadMissingBlob() {
+        Blob blob = blobStore.createBlob("test blob", 10);
+        try {
+            blob.read();
+            fail("Expected BlobNotFoundException");
+        }
+        catch (BlobNotFoundException e) { }
+    }
+
+    @Test
+    public void testBlobsSurviveReopen() throws IOException {
+        byte[] data = randomBytes(100);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        FileBlobStore reopened = new FileBlobStore(folder.getRoot().toPath());
+        Blob found = reopened.getBlob(blob.getId());
+        try (InputStream is = found.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testDirectReadMapped() throws IOException {
+        byte[] data = randomBytes(8192);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        try (DirectReadContext ctx = blob.getDirectReadContext()) {
+            assertEquals(data.length, ctx.getLength());
+            ByteBuffer buffer = ctx.getByteBuffer();
+            byte[] mapped = new byte[buffer.remaining()];
+            buffer.get(mapped);
+            assertArrayEquals(data, mapped);
+
+            ByteBuffer window = ctx.getByteBuffer(4096, 100);
+            assertEquals(100, window.remaining());
+            assertEquals(data[4096], window.get(0));
+        }
+    }
+
+    @Test
+    public void testDirectReadTransferTo() throws IOException {
+        byte[] data = randomBytes(100000);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DirectReadContext ctx = blob.getDirectReadContext()) {
+            assertEquals(data.length, ctx.transferTo(Channels.newChannel(out)));
+        }
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testContentAddressedDeduplicates() throws IOException {
+        FileBlobStore casStore = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.CONTENT_ADDRESSED);
+        byte[] data = randomBytes(4096);
+
+        Blob first = casStore.createBlob("first", data.length);
+        first.write(new ByteArrayInputStream(data));
+        Blob second = casStore.createBlob("second", data.length);
+        second.write(new ByteArrayInputStream(data));
+
+        Path content = casStore.getContentPath(Hashing.sha256().hashBytes(data).toString());
+        assertTrue(Files.isRegularFile(content));
+        assertEquals(3, FileBlobStore.getLinkCount(content));
+
+        assertTrue(casStore.delete(first.getId()));
+        assertFalse(casStore.exists(first.getId()));
+        assertEquals(2, FileBlobStore.getLinkCount(content));
+        try (InputStream is = second.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+
+        assertTrue(casStore.delete(second.getId()));
+        assertFalse(Files.exists(content));
+    }
+
+    @Test
+    public void testCopySharesData() throws IOException {
+        byte[] data = randomBytes(4096);
+        byte[] replacement = randomBytes(100);
+        Blob original = blobStore.createBlob("original", data.length);
+        original.write(new ByteArrayInputStream(data));
+
+        Blob copy = original.copy("copy");
+        assertEquals(2, FileBlobStore.getLinkCount(blobStore.getBlobPath(copy.getId())));
+        assertEquals(original.getChecksums().get().getCrc32c(), copy.getChecksums().get().getCrc32c());
+
+        original.write(new ByteArrayInputStream(replacement));
+        assertTrue(blobStore.delete(original.getId()));
+        assertEquals(1, FileBlobStore.getLinkCount(blobStore.getBlobPath(copy.getId())));
+        try (InputStream is = copy.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+        assertTrue(copy.verify());
+    }
+
+    @Test
+    public void testContentAddressedCopyKeepsContent() throws IOException {
+        FileBlobStore casStore = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.CONTENT_ADDRESSED);
+        byte[] data = randomBytes(4096);
+        Blob original = casStore.createBlob("original", data.length);
+        original.write(new ByteArrayInputStream(data));
+        Blob copy = original.copy("copy");
+
+        Path content = casStore.getContentPath(Hashing.sha256().hashBytes(data).toString());
+        assertEquals(3, FileBlobStore.getLinkCount(content));
+        assertTrue(casStore.delete(original.getId()));
+        try (InputStream is = copy.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+        assertTrue(casStore.delete(copy.getId()));
+        assertFalse(Files.exists(content));
+    }
+
+    @Test(expected = BlobNotFoundException.class)
+    public void testCopyMissingBlob() throws IOException {
+        blobStore.copy(blobStore.createBlob("missing", 10).getId(), "copy");
+    }
+
+    @Test
+    public void testContentAddressedOverwriteReleasesContent() throws IOException {
+        FileBlobStore casStore = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.CONTENT_ADDRESSED);
+        byte[] original = randomBytes(100);
+        byte[] replacement = randomBytes(200);
+
+        Blob blob = casStore.createBlob("blob", original.length);
+        blob.write(new ByteArrayInputStream(original));
+        Path originalContent = casStore.getContentPath(Hashing.sha256().hashBytes(original).toString());
+        assertTrue(Files.exists(originalContent));
+
+        blob.write(new ByteArrayInputStream(replacement));
+        assertFalse(Files.exists(originalContent));
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(replacement, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testReadRange() throws IOException {
+        byte[] data = randomBytes(10000);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        try (InputStream is = blob.read(9000, 500)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 9000, 9500), ByteStreams.toByteArray(is));
+        }
+        try (InputStream is = blob.read(9900, 500)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 9900, 10000), ByteStreams.toByteArray(is));
+        }
+        try (InputStream is = blob.read(20000, 10)) {
+            assertEquals(-1, is.read());
+        }
+
+        try (DirectReadContext ctx = blob.getDirectReadContext()) {
+            assertArrayEquals(Arrays.copyOfRange(data, 10, 20), ByteStreams.toByteArray(ctx.getInputStream(10, 10)));
+            assertArrayEquals(Arrays.copyOfRange(data, 5000, 5010), ByteStreams.toByteArray(ctx.getInputStream(5000, 10)));
+        }
+    }
+
+    @Test
+    public void testWriteDirect() throws IOException {
+        byte[] data = randomBytes(1024);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.write(new ByteArrayInputStream(data));
+        assertTrue(blob.endDirectWrite(ctx));
+
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testWriteDirectParallelParts() throws Exception {
+        byte[] data = randomBytes((int) (2.5 * FileUploadSession.MIN_PART_SIZE));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        assertEquals(3, ctx.getPartCount());
+
+        ExecutorService executor = Executors.newFixedThreadPool(ctx.getPartCount());
+        try {
+            List<Future<?>> results = Lists.newArrayList();
+            for (int i = 1; i <= ctx.getPartCount(); i++) {
+                final int partNumber = i;
+                final int from = (int) ((partNumber - 1) * ctx.getPartSize());
+                final int to = (int) Math.min(data.length, from + ctx.getPartSize());
+                results.add(executor.submit(() -> {
+                    ctx.writePart(partNumber, new ByteArrayInputStream(data, from, to - from));
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertFalse(blobStore.exists(blob.getId()));
+        assertTrue(blob.endDirectWrite(ctx));
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+        assertFalse(blob.endDirectWrite(ctx));
+    }
+
+    @Test
+    public void testWriteDirectRejectsIncompleteUpload() throws IOException {
+        byte[] data = randomBytes((int) (1.5 * FileUploadSession.MIN_PART_SIZE));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.writePart(2, new ByteArrayInputStream(data, (int) ctx.getPartSize(), data.length - (int) ctx.getPartSize()));
+
+        assertFalse(blob.endDirectWrite(ctx));
+        assertFalse(blobStore.exists(blob.getId()));
+
+        try {
+            ctx.writePart(1, new ByteArrayInputStream(data, 0, 10));
+            fail("Expected IOException for a short part");
+        }
+        catch (IOException e) { }
+    }
+
+    @Test
+    public void testResumeDirectWriteAfterRestart() throws IOException {
+        byte[] data = randomBytes((int) (1.5 * FileUploadSession.MIN_PART_SIZE));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        int partSize = (int) ctx.getPartSize();
+        ctx.writePart(2, new ByteArrayInputStream(data, partSize, data.length - partSize));
+        String token = ctx.getEncodedToken();
+
+        FileBlobStore reopened = new FileBlobStore(folder.getRoot().toPath());
+        Blob reopenedBlob = new Blob(reopened, blob.getId());
+        DirectWriteContext resumed = reopenedBlob.resumeDirectWrite(token);
+        assertNotNull(resumed);
+        assertEquals(Lists.newArrayList(1), resumed.getMissingParts());
+
+        CRC32C crc = new CRC32C();
+        crc.update(data, partSize, data.length - partSize);
+        assertEquals(crc.getValue(), resumed.getPartChecksum(2).getAsLong());
+        assertFalse(resumed.getPartChecksum(1).isPresent());
+
+        assertFalse(reopenedBlob.endDirectWrite(resumed));
+        resumed.writePart(1, new ByteArrayInputStream(data, 0, partSize));
+        assertTrue(resumed.getMissingParts().isEmpty());
+        assertTrue(reopenedBlob.endDirectWrite(resumed));
+
+        try (InputStream is = reopenedBlob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+        assertNull(reopenedBlob.resumeDirectWrite(token));
+    }
+
+    @Test
+    public void testCorruptPartIsDroppedOnResume() throws IOException {
+        byte[] data = randomBytes((int) (1.5 * FileUploadSession.MIN_PART_SIZE));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.write(new ByteArrayInputStream(data));
+
+        // Parts recorded before a restart are checked against their CRC32C on completion
+        Path staged = folder.getRoot().toPath().resolve(FileBlobStore.UPLOADS_DIR).resolve(uploadIdOf(ctx) + ".data");
+        try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) ~data[100] }), 100);
+        }
+        FileBlobStore reopened = new FileBlobStore(folder.getRoot().toPath());
+        Blob reopenedBlob = new Blob(reopened, blob.getId());
+        DirectWriteContext resumed = reopenedBlob.resumeDirectWrite(ctx.getEncodedToken());
+        assertTrue(resumed.getMissingParts().isEmpty());
+        assertFalse(reopenedBlob.endDirectWrite(resumed));
+        assertEquals(Lists.newArrayList(1), resumed.getMissingParts());
+
+        resumed.writePart(1, new ByteArrayInputStream(data, 0, (int) resumed.getPartSize()));
+        assertTrue(reopenedBlob.endDirectWrite(resumed));
+        try (InputStream is = reopenedBlob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+    }
+
+    @Test
+    public void testAbortDirectWrite() throws IOException {
+        byte[] data = randomBytes(1024);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.write(new ByteArrayInputStream(data));
+
+        assertTrue(blob.abortDirectWrite(ctx));
+        assertFalse(blob.abortDirectWrite(ctx));
+        assertFalse(blob.endDirectWrite(ctx));
+        assertNull(blob.resumeDirectWrite(ctx.getEncodedToken()));
+        assertTrue(FileUploadSession.list(folder.getRoot().toPath().resolve(FileBlobStore.UPLOADS_DIR)).isEmpty());
+    }
+
+    @Test
+    public void testExpireUploads() throws Exception {
+        Path uploadsPath = folder.getRoot().toPath().resolve(FileBlobStore.UPLOADS_DIR);
+        Blob idle = blobStore.createBlob("idle blob", 1024);
+        DirectWriteContext idleCtx = idle.getDirectWriteContext();
+        Blob active = blobStore.createBlob("active blob", 1024);
+        DirectWriteContext activeCtx = active.getDirectWriteContext();
+        assertEquals(0, blobStore.expireUploads(Duration.ofDays(1)));
+
+        // Not loaded by the reopened store, so judged by its files when it opens
+        FileTime old = FileTime.from(Instant.now().minus(FileBlobStore.DEFAULT_UPLOAD_EXPIRY).minus(Duration.ofDays(1)));
+        for (String suffix : new String[] { ".data", ".session", ".parts" }) {
+            Files.setLastModifiedTime(uploadsPath.resolve(uploadIdOf(idleCtx) + suffix), old);
+        }
+        FileBlobStore reopened = new FileBlobStore(folder.getRoot().toPath());
+        assertNull(new Blob(reopened, idle.getId()).resumeDirectWrite(idleCtx.getEncodedToken()));
+
+        // Loaded, so judged by when its last part arrived
+        assertNotNull(new Blob(reopened, active.getId()).resumeDirectWrite(activeCtx.getEncodedToken()));
+        Thread.sleep(10);
+        assertEquals(1, reopened.expireUploads(Duration.ZERO));
+        assertTrue(FileUploadSession.list(uploadsPath).isEmpty());
+    }
+
+    private static String uploadIdOf(DirectWriteContext ctx) {
+        return ((FileDirectWriteContext) ctx).getUploadId();
+    }
+
+    @Test
+    public void testResumeDirectWriteRejectsForeignToken() throws IOException {
+        Blob blob = blobStore.createBlob("test blob", 10);
+        Blob other = blobStore.createBlob("other blob", 10);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        assertNull(other.resumeDirectWrite(ctx.getEncodedToken()));
+    }
+
+    @Test
+    public void testChecksumsRecordedOnWrite() throws IOException {
+        byte[] data = randomBytes(5000);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        BlobChecksums checksums = blob.getChecksums().get();
+        assertEquals(crc.getValue(), checksums.getCrc32c());
+        assertFalse(checksums.getSha256().isPresent());
+        assertTrue(blob.verify());
+
+        FileBlobStore sha256Store = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.SHA256);
+        Blob sha256Blob = sha256Store.createBlob("test blob", data.length);
+        sha256Blob.write(new ByteArrayInputStream(data));
+        assertEquals(new BlobChecksums(crc.getValue(), Hashing.sha256().hashBytes(data).toString()),
+                sha256Blob.getChecksums().get());
+        assertTrue(sha256Blob.verify());
+    }
+
+    @Test
+    public void testLegacyMetadataIsCompleted() throws IOException {
+        FileBlobStore casStore = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.CONTENT_ADDRESSED);
+        byte[] data = randomBytes(5000);
+        String digest = Hashing.sha256().hashBytes(data).toString();
+        Blob blob = casStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+        Path blobPath = casStore.getBlobPath(blob.getId());
+        Path metadataPath = blobPath.resolveSibling(blobPath.getFileName() + ".meta");
+        Files.write(metadataPath, ("{\"digest\":\"" + digest + "\"}").getBytes(StandardCharsets.UTF_8));
+
+        try (InputStream is = blob.read()) {
+            assertArrayEquals(data, ByteStreams.toByteArray(is));
+        }
+        assertTrue(blob.verify());
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        assertEquals(new BlobChecksums(crc.getValue(), digest), blob.getChecksums().get());
+        assertTrue(new String(Files.readAllBytes(metadataPath), StandardCharsets.UTF_8).contains("crc32c"));
+
+        Files.write(metadataPath, ("{\"digest\":\"" + digest.replace(digest.charAt(0), 'x') + "\"}").getBytes(StandardCharsets.UTF_8));
+        assertFalse(blob.verify());
+    }
+
+    @Test
+    public void testChecksumsRecordedOnDirectWrite() throws IOException {
+        byte[] data = randomBytes(5000);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.write(new ByteArrayInputStream(data));
+        assertTrue(blob.endDirectWrite(ctx));
+
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        assertEquals(crc.getValue(), blob.getChecksums().get().getCrc32c());
+        assertTrue(blob.verify());
+    }
+
+    @Test
+    public void testChecksumsRecordedOnDirectWriteInAnyOrder() throws IOException {
+        byte[] data = randomBytes((int) (3.5 * FileUploadSession.MIN_PART_SIZE));
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        BlobChecksums expected = new BlobChecksums(crc.getValue(), Hashing.sha256().hashBytes(data).toString());
+        FileBlobStore sha256Store = new FileBlobStore(folder.newFolder().toPath(), FileBlobStore.Option.SHA256);
+
+        for (int[] order : new int[][] { { 1, 2, 3, 4 }, { 1, 3, 2, 4 }, { 4, 3, 2, 1 }, { 1, 2, 1, 3, 4 } }) {
+            Blob blob = sha256Store.createBlob("test blob", data.length);
+            DirectWriteContext ctx = blob.getDirectWriteContext();
+            int partSize = (int) ctx.getPartSize();
+            for (int partNumber : order) {
+                int from = (partNumber - 1) * partSize;
+                ctx.writePart(partNumber, new ByteArrayInputStream(data, from, Math.min(partSize, data.length - from)));
+            }
+            assertTrue(blob.endDirectWrite(ctx));
+            assertEquals(expected, blob.getChecksums().get());
+            assertTrue(blob.verify());
+        }
+    }
+
+    @Test
+    public void testCrc32cCombine() {
+        byte[] data = randomBytes(10000);
+        CRC32C whole = new CRC32C();
+        whole.update(data);
+        for (int split : new int[] { 0, 1, 4999, 10000 }) {
+            CRC32C first = new CRC32C();
+            first.update(data, 0, split);
+            CRC32C second = new CRC32C();
+            second.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), Crc32c.combine(first.getValue(), second.getValue(), data.length - split));
+        }
+    }
+
+    @Test
+    public void testCorruptionDetected() throws IOException {
+        byte[] data = randomBytes(5000);
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        try (FileChannel channel = FileChannel.open(blobStore.getBlobPath(blob.getId()), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) ~data[100] }), 100);
+        }
+
+        assertFalse(blob.verify());
+        try (InputStream is = blob.read()) {
+            ByteStreams.toByteArray(is);
+            fail("Expected BlobCorruptedException");
+        }
+        catch (BlobCorruptedException e) { }
+    }
+}
@@ -17,12 +17,14 @@
 
 package com.zoomulus.cncp.blobstore;
 
+import com.zoomulus.cncp.utils.EpochClock;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.OffsetDateTime;
+import java.util.Optional;
 
 import static com.zoomulus.cncp.utils.Identifiers.generateUniqueIdentifier;
 
@@ -40,7 +42,16 @@ public class Blob {
          @NotNull final String uniqueId,
          @NotNull final String name,
          long length) {
-        this(blobStore, uniqueId, name, length, OffsetDateTime.now());
+        this(blobStore, uniqueId, name, length, EpochClock.system().epochMillis());
+    }
+
+    public Blob(@NotNull final BlobStore blobStore,
+         @NotNull final String uniqueId,
+         @NotNull final String name,
+         long length,
+         long createdMillis) {
+        this.blobStore = blobStore;
+        id = new BlobIdentifier(uniqueId, name, length, createdMillis);
     }
 
     public Blob(@NotNull final BlobStore blobStore,
@@ -85,15 +96,43 @@ public class Blob {
         return blobStore.read(id);
     }
 
+    @NotNull
+    public InputStream read(long offset, long length) throws BlobNotFoundException {
+        return blobStore.read(id, offset, length);
+    }
+
+    @NotNull
+    public Blob copy(@NotNull final String name) throws BlobNotFoundException {
+        return blobStore.copy(id, name);
+    }
+
+    @NotNull
+    public Optional<BlobChecksums> getChecksums() throws BlobNotFoundException {
+        return blobStore.getChecksums(id);
+    }
+
+    public boolean verify() throws BlobNotFoundException {
+        return blobStore.verify(id);
+    }
+
     @Nullable
     public DirectWriteContext getDirectWriteContext() {
         return blobStore.getDirectWriteContext(id);
     }
 
+    @Nullable
+    public DirectWriteContext resumeDirectWrite(@NotNull final String encodedToken) {
+        return blobStore.resumeDirectWrite(id, encodedToken);
+    }
+
     public boolean endDirectWrite(@NotNull final DirectWriteContext ctx) {
         return blobStore.endDirectWrite(id, ctx);
     }
 
+    public boolean abortDirectWrite(@NotNull final DirectWriteContext ctx) {
+        return blobStore.abortDirectWrite(id, ctx);
+    }
+
     @Nullable
     public DirectReadContext getDirectReadContext() throws BlobNotFoundException {
         return blobStore.getDirectReadContext(id);
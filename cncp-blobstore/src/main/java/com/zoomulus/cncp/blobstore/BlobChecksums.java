@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+import java.util.Optional;
+
+public class BlobChecksums {
+    private final long crc32c;
+    private @Nullable final String sha256;
+
+    public BlobChecksums(long crc32c, @Nullable final String sha256) {
+        this.crc32c = crc32c;
+        this.sha256 = sha256;
+    }
+
+    public long getCrc32c() {
+        return crc32c;
+    }
+
+    @NotNull
+    public Optional<String> getSha256() {
+        return Optional.ofNullable(sha256);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof BlobChecksums)) {
+            return false;
+        }
+        BlobChecksums other = (BlobChecksums) o;
+        return crc32c == other.crc32c && Objects.equals(sha256, other.sha256);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(crc32c, sha256);
+    }
+
+    @Override
+    @NotNull
+    public String toString() {
+        return null == sha256
+                ? String.format("crc32c=%08x", crc32c)
+                : String.format("crc32c=%08x sha256=%s", crc32c, sha256);
+    }
+}
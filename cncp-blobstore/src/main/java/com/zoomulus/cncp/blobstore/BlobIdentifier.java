@@ -17,65 +17,208 @@
 
 package com.zoomulus.cncp.blobstore;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zoomulus.cncp.utils.EpochClock;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.List;
 import java.util.UUID;
 
+/**
+ * Identifies a blob by unique id, common name, length and creation time.
+ *
+ * There are two encodings.  The string form returned by {@link #toString()} is
+ * Base64 of {@code uniqueId#!#name#!#length#!#epochMillis} and is what blob
+ * stores key on.  The compact binary form from {@link #toBytes()} omits the
+ * name and packs the rest into a fixed layout: a tag byte, the unique id as a
+ * 128-bit UUID where possible, then the length and creation time as varints.
+ *
+ * Parsed string ids are interned in a bounded cache, so identifiers that are
+ * parsed repeatedly are decoded once and shared.  The creation time is held
+ * as epoch millis and only turned into an {@link OffsetDateTime} when asked.
+ */
 public class BlobIdentifier {
     private final String uniqueId;
     private final String commonName;
-    private long length;
+    private final long length;
+    private final long createdMillis;
     private OffsetDateTime created;
-    private final String identifier;
+    private final int hash;
+    private String identifier;
 
     static final String DELIM="#!#";
+    private static final byte[] DELIM_BYTES = DELIM.getBytes(StandardCharsets.UTF_8);
+
+    static final byte TAG_STRING_ID = 0;
+    static final byte TAG_UUID_ID = 1;
+    static final byte TAG_UUID_MILLIS_ID = 2;
+    private static final int UUID_STRING_LENGTH = 36;
+
+    static final int PARSE_CACHE_SIZE = 10000;
+    private static final Cache<String, BlobIdentifier> PARSE_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(PARSE_CACHE_SIZE)
+            .build();
 
     public BlobIdentifier(@NotNull final String commonName, long length) {
-        this(UUID.randomUUID().toString(), commonName, length, OffsetDateTime.now());
+        this(UUID.randomUUID().toString(), commonName, length, EpochClock.system().epochMillis());
+    }
+
+    public BlobIdentifier(@NotNull final String uniqueId,
+                          @NotNull final String commonName,
+                          long length,
+                          long createdMillis) {
+        this(uniqueId, commonName, length, createdMillis, null, null);
     }
 
     public BlobIdentifier(@NotNull final String uniqueId,
                           @NotNull final String commonName,
                           long length,
                           OffsetDateTime created) {
+        this(uniqueId, commonName, length, created.toInstant().toEpochMilli(), created, null);
+    }
+
+    private BlobIdentifier(@NotNull final String uniqueId,
+                           @NotNull final String commonName,
+                           long length,
+                           long createdMillis,
+                           final OffsetDateTime created,
+                           final String identifier) {
         this.uniqueId = uniqueId;
         this.commonName = commonName;
         this.length = length;
+        this.createdMillis = createdMillis;
         this.created = created;
-        this.identifier = createBlobIdentifier(uniqueId, commonName, length, created);
+        this.identifier = identifier;
+        this.hash = 31 * (31 * (31 * uniqueId.hashCode() + commonName.hashCode()) + Long.hashCode(length))
+                + Long.hashCode(createdMillis);
+    }
+
+    private BlobIdentifier(@NotNull final String uniqueId,
+                           @NotNull final String commonName,
+                           long length,
+                           long createdMillis,
+                           final String identifier) {
+        this(uniqueId, commonName, length, createdMillis, null, identifier);
     }
 
     public static BlobIdentifier createFromStringId(@NotNull final String stringId) throws IllegalArgumentException {
-        String decoded = new String(Base64.getDecoder().decode(stringId));
-        List<String> parts = Splitter.on(DELIM).splitToList(decoded);
-        if (parts.size() < 4) {
-            throw new IllegalArgumentException(String.format("Cannot construct Blob from identifier '%s' - decoded identifier '%s' does not contain all required fields"));
+        BlobIdentifier cached = PARSE_CACHE.getIfPresent(stringId);
+        if (null != cached) {
+            return cached;
+        }
+        BlobIdentifier parsed = parseStringId(stringId);
+        PARSE_CACHE.put(stringId, parsed);
+        return parsed;
+    }
+
+    private static BlobIdentifier parseStringId(@NotNull final String stringId) throws IllegalArgumentException {
+        // Scan the decoded bytes in place instead of splitting into strings;
+        // only the unique id and name need to be materialized.
+        byte[] decoded = Base64.getDecoder().decode(stringId);
+        int idEnd = indexOfDelim(decoded, 0);
+        int nameEnd = idEnd < 0 ? -1 : indexOfDelim(decoded, idEnd + DELIM_BYTES.length);
+        int lengthEnd = nameEnd < 0 ? -1 : indexOfDelim(decoded, nameEnd + DELIM_BYTES.length);
+        if (lengthEnd < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot construct Blob from identifier '%s' - decoded identifier '%s' does not contain all required fields",
+                    stringId, new String(decoded, StandardCharsets.UTF_8)));
+        }
+        int createdEnd = indexOfDelim(decoded, lengthEnd + DELIM_BYTES.length);
+        if (createdEnd < 0) {
+            createdEnd = decoded.length;
         }
 
-        return new BlobIdentifier(parts.get(0), parts.get(1), Long.parseLong(parts.get(2)),
-                Instant.ofEpochMilli(Long.parseLong(parts.get(3))).atOffset(OffsetDateTime.now().getOffset()));
+        return new BlobIdentifier(
+                new String(decoded, 0, idEnd, StandardCharsets.UTF_8),
+                new String(decoded, idEnd + DELIM_BYTES.length, nameEnd - idEnd - DELIM_BYTES.length, StandardCharsets.UTF_8),
+                parseLong(decoded, nameEnd + DELIM_BYTES.length, lengthEnd, stringId),
+                parseLong(decoded, lengthEnd + DELIM_BYTES.length, createdEnd, stringId),
+                stringId);
     }
 
     static String createBlobIdentifier(@NotNull final String id, @NotNull final String name, long length, OffsetDateTime created) {
+        return createBlobIdentifier(id, name, length, created.toInstant().toEpochMilli());
+    }
+
+    private static String createBlobIdentifier(@NotNull final String id, @NotNull final String name, long length, long createdMillis) {
         return Base64.getEncoder().encodeToString(
-                Joiner.on(DELIM).join(
-                        id,
-                        name,
-                        String.valueOf(length),
-                        String.valueOf(created.toInstant().toEpochMilli())
-                ).getBytes());
+                (id + DELIM + name + DELIM + length + DELIM + createdMillis).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    public byte[] toBytes() {
+        byte[] buffer;
+        int pos;
+        UUID uuid = asUuid(uniqueId, 0, Math.min(uniqueId.length(), UUID_STRING_LENGTH));
+        long suffix = uuid == null ? -1 : parseMillisSuffix(uniqueId);
+        if (null != uuid && uniqueId.length() == UUID_STRING_LENGTH) {
+            buffer = new byte[1 + 16 + 20];
+            buffer[0] = TAG_UUID_ID;
+            pos = putUuid(buffer, 1, uuid);
+        }
+        else if (null != uuid && suffix >= 0) {
+            buffer = new byte[1 + 16 + 30];
+            buffer[0] = TAG_UUID_MILLIS_ID;
+            pos = putUuid(buffer, 1, uuid);
+            pos = putVarLong(buffer, pos, suffix);
+        }
+        else {
+            byte[] idBytes = uniqueId.getBytes(StandardCharsets.UTF_8);
+            buffer = new byte[1 + 5 + idBytes.length + 20];
+            buffer[0] = TAG_STRING_ID;
+            pos = putVarLong(buffer, 1, idBytes.length);
+            System.arraycopy(idBytes, 0, buffer, pos, idBytes.length);
+            pos += idBytes.length;
+        }
+        pos = putVarLong(buffer, pos, zigZag(length));
+        pos = putVarLong(buffer, pos, zigZag(createdMillis));
+        return Arrays.copyOf(buffer, pos);
+    }
+
+    @NotNull
+    public static BlobIdentifier fromBytes(@NotNull final byte[] bytes, @NotNull final String commonName) throws IllegalArgumentException {
+        try {
+            long[] cursor = new long[] { 1 };
+            String uniqueId;
+            switch (bytes[0]) {
+                case TAG_UUID_ID:
+                    uniqueId = getUuid(bytes, cursor).toString();
+                    break;
+                case TAG_UUID_MILLIS_ID:
+                    uniqueId = getUuid(bytes, cursor).toString() + "-" + getVarLong(bytes, cursor);
+                    break;
+                case TAG_STRING_ID:
+                    int idLength = (int) getVarLong(bytes, cursor);
+                    uniqueId = new String(bytes, (int) cursor[0], idLength, StandardCharsets.UTF_8);
+                    cursor[0] += idLength;
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown blob identifier format %d", bytes[0]));
+            }
+            long length = unZigZag(getVarLong(bytes, cursor));
+            long createdMillis = unZigZag(getVarLong(bytes, cursor));
+            return new BlobIdentifier(uniqueId, commonName, length, createdMillis, null);
+        }
+        catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated blob identifier", e);
+        }
     }
 
     @Override
     @NotNull
     public String toString() {
-        return identifier;
+        String id = identifier;
+        if (null == id) {
+            id = createBlobIdentifier(uniqueId, commonName, length, createdMillis);
+            identifier = id;
+        }
+        return id;
     }
 
     public String getUniqueId() {
@@ -90,12 +233,167 @@ public class BlobIdentifier {
         return length;
     }
 
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
     public OffsetDateTime getCreated() {
-        return created;
+        OffsetDateTime current = created;
+        if (null == current) {
+            current = toOffsetDateTime(createdMillis);
+            created = current;
+        }
+        return current;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (! (o instanceof BlobIdentifier)) {
+            return false;
+        }
+        BlobIdentifier other = (BlobIdentifier) o;
+        return hash == other.hash
+                && length == other.length
+                && createdMillis == other.createdMillis
+                && uniqueId.equals(other.uniqueId)
+                && commonName.equals(other.commonName);
     }
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        return hash;
+    }
+
+    @NotNull
+    private static OffsetDateTime toOffsetDateTime(long epochMillis) {
+        Instant instant = Instant.ofEpochMilli(epochMillis);
+        return instant.atOffset(ZoneId.systemDefault().getRules().getOffset(instant));
+    }
+
+    private static int indexOfDelim(@NotNull final byte[] bytes, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - DELIM_BYTES.length; i++) {
+            for (int j = 0; j < DELIM_BYTES.length; j++) {
+                if (bytes[i + j] != DELIM_BYTES[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static long parseLong(@NotNull final byte[] bytes, int from, int to, @NotNull final String stringId) {
+        boolean negative = from < to && bytes[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to) {
+            throw new IllegalArgumentException(String.format("Invalid numeric field in blob identifier '%s'", stringId));
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException(String.format("Invalid numeric field in blob identifier '%s'", stringId));
+            }
+            try {
+                value = Math.addExact(Math.multiplyExact(value, 10), negative ? -digit : digit);
+            }
+            catch (ArithmeticException e) {
+                throw new IllegalArgumentException(String.format("Invalid numeric field in blob identifier '%s'", stringId));
+            }
+        }
+        return value;
+    }
+
+    private static UUID asUuid(@NotNull final String s, int from, int to) {
+        if (to - from != UUID_STRING_LENGTH) {
+            return null;
+        }
+        try {
+            String candidate = s.substring(from, to);
+            UUID uuid = UUID.fromString(candidate);
+            // UUID.fromString() is lenient; only use the compact form if it round-trips exactly.
+            return uuid.toString().equals(candidate) ? uuid : null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static long parseMillisSuffix(@NotNull final String uniqueId) {
+        if (uniqueId.length() <= UUID_STRING_LENGTH + 1 || uniqueId.charAt(UUID_STRING_LENGTH) != '-'
+                || uniqueId.length() > UUID_STRING_LENGTH + 19 || uniqueId.charAt(UUID_STRING_LENGTH + 1) == '0') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = UUID_STRING_LENGTH + 1; i < uniqueId.length(); i++) {
+            int digit = uniqueId.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int putUuid(@NotNull final byte[] buffer, int pos, @NotNull final UUID uuid) {
+        pos = putLong(buffer, pos, uuid.getMostSignificantBits());
+        return putLong(buffer, pos, uuid.getLeastSignificantBits());
+    }
+
+    private static int putLong(@NotNull final byte[] buffer, int pos, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[pos++] = (byte) (value >>> shift);
+        }
+        return pos;
+    }
+
+    @NotNull
+    private static UUID getUuid(@NotNull final byte[] bytes, @NotNull final long[] cursor) {
+        return new UUID(getLong(bytes, cursor), getLong(bytes, cursor));
+    }
+
+    private static long getLong(@NotNull final byte[] bytes, @NotNull final long[] cursor) {
+        int pos = (int) cursor[0];
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[pos + i] & 0xff);
+        }
+        cursor[0] = pos + 8;
+        return value;
+    }
+
+    private static int putVarLong(@NotNull final byte[] buffer, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long getVarLong(@NotNull final byte[] bytes, @NotNull final long[] cursor) {
+        int pos = (int) cursor[0];
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = bytes[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                cursor[0] = pos;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in blob identifier");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
     }
 }
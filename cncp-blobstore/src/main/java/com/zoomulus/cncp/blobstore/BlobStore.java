@@ -22,15 +22,28 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 
 public interface BlobStore {
     @NotNull Blob createBlob(@NotNull final String name, long length);
     @NotNull  Blob getBlob(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException;
     void write(@NotNull final BlobIdentifier blobId, @NotNull final InputStream inputStream) throws IOException;
     @NotNull InputStream read(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException;
+    @NotNull InputStream read(@NotNull final BlobIdentifier blobId, long offset, long length) throws BlobNotFoundException;
     boolean exists(@NotNull final BlobIdentifier blobId);
+    @NotNull Optional<BlobChecksums> getChecksums(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException;
+    boolean verify(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException;
     boolean delete(@NotNull final BlobIdentifier blobId);
+
+    /**
+     * Creates a new blob with the same data as an existing one.  Stores may
+     * share the data between the two rather than duplicate it; either blob
+     * can then be rewritten or deleted without affecting the other.
+     */
+    @NotNull Blob copy(@NotNull final BlobIdentifier blobId, @NotNull final String name) throws BlobNotFoundException;
     @Nullable DirectWriteContext getDirectWriteContext(@NotNull final BlobIdentifier blobId);
+    @Nullable DirectWriteContext resumeDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final String encodedToken);
     boolean endDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final DirectWriteContext ctx);
+    boolean abortDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final DirectWriteContext ctx);
     @Nullable DirectReadContext getDirectReadContext(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException;
 }
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.blobstore;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the CRC32C of a blob as it is read and fails the read with a
+ * {@link BlobCorruptedException} at end of stream if it does not match the
+ * checksum recorded when the blob was written.
+ */
+public class ChecksumVerifyingInputStream extends FilterInputStream {
+    private final CRC32C crc = new CRC32C();
+    private final long expectedCrc32c;
+    private @NotNull final String blobId;
+    private boolean verified = false;
+
+    public ChecksumVerifyingInputStream(@NotNull final InputStream in, long expectedCrc32c, @NotNull final String blobId) {
+        super(in);
+        this.expectedCrc32c = expectedCrc32c;
+        this.blobId = blobId;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b < 0) {
+            verify();
+        }
+        else {
+            crc.update(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NotNull final byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read < 0) {
+            verify();
+        }
+        else {
+            crc.update(b, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to be checksummed.
+        byte[] buffer = new byte[(int) Math.min(8192, Math.max(1, n))];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void verify() throws BlobCorruptedException {
+        if (! verified) {
+            verified = true;
+            if (crc.getValue() != expectedCrc32c) {
+                throw new BlobCorruptedException(String.format("Checksum mismatch reading blob [%s]: expected %08x, read %08x",
+                        blobId, expectedCrc32c, crc.getValue()));
+            }
+        }
+    }
+}
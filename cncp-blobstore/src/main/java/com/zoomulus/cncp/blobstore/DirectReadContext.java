@@ -17,8 +17,21 @@
 
 package com.zoomulus.cncp.blobstore;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
-public interface DirectReadContext {
+public interface DirectReadContext extends Closeable {
     InputStream getInputStream();
+    InputStream getInputStream(long offset, long length);
+    long getLength();
+    @NotNull ReadableByteChannel getChannel();
+    @NotNull ByteBuffer getByteBuffer() throws IOException;
+    @NotNull ByteBuffer getByteBuffer(long position, long size) throws IOException;
+    long transferTo(@NotNull final WritableByteChannel target) throws IOException;
 }
@@ -21,8 +21,15 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.OptionalLong;
 
 public interface DirectWriteContext {
     void write(@NotNull final InputStream inputStream) throws IOException;
+    void writePart(int partNumber, @NotNull final InputStream inputStream) throws IOException;
+    long getPartSize();
+    int getPartCount();
+    @NotNull List<Integer> getMissingParts();
+    @NotNull OptionalLong getPartChecksum(int partNumber);
     @NotNull String getEncodedToken();
 }
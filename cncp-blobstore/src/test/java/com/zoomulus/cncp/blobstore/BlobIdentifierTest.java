@@ -21,8 +21,14 @@ import org.junit.Test;
 
 import java.time.OffsetDateTime;
 
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class BlobIdentifierTest {
     @Test
@@ -57,4 +63,66 @@ public class BlobIdentifierTest {
         assertEquals(size, blobId.getLength());
         assertEquals(now, blobId.getCreated());
     }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        OffsetDateTime now = OffsetDateTime.now().withNano(0);
+        BlobIdentifier a = new BlobIdentifier("id", "name", 10, now);
+        BlobIdentifier b = BlobIdentifier.createFromStringId(a.toString());
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertTrue(! a.equals(new BlobIdentifier("id", "name", 11, now)));
+        assertTrue(! a.equals(new BlobIdentifier("id", "other", 10, now)));
+    }
+
+    @Test
+    public void testCreateFromStringIdIsCached() {
+        String stringId = new BlobIdentifier("cached", 10).toString();
+
+        assertSame(BlobIdentifier.createFromStringId(stringId), BlobIdentifier.createFromStringId(stringId));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() {
+        OffsetDateTime now = OffsetDateTime.now().withNano(0);
+        String uuid = UUID.randomUUID().toString();
+        for (String id : new String[] { uuid, uuid + "-" + System.currentTimeMillis(), "id", uuid.toUpperCase() }) {
+            BlobIdentifier blobId = new BlobIdentifier(id, "name", 1234567, now);
+            byte[] bytes = blobId.toBytes();
+            BlobIdentifier decoded = BlobIdentifier.fromBytes(bytes, "name");
+
+            assertEquals(blobId, decoded);
+            assertEquals(id, decoded.getUniqueId());
+            assertEquals(now.toInstant(), decoded.getCreated().toInstant());
+            assertEquals(blobId.toString(), decoded.toString());
+        }
+        assertTrue(new BlobIdentifier(uuid, "name", 10, now).toBytes().length < 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedStringId() {
+        BlobIdentifier.createFromStringId(Base64.getEncoder().encodeToString("id#!#name".getBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOverflowingStringId() {
+        BlobIdentifier.createFromStringId(Base64.getEncoder().encodeToString("id#!#name#!#99999999999999999999#!#0".getBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedBytes() {
+        byte[] bytes = new BlobIdentifier(UUID.randomUUID().toString(), "name", 10, OffsetDateTime.now()).toBytes();
+        BlobIdentifier.fromBytes(Arrays.copyOf(bytes, 10), "name");
+    }
+
+    @Test
+    public void testConstructFromMillis() {
+        long millis = 1500000000123L;
+        BlobIdentifier blobId = new BlobIdentifier("id", "name", 10, millis);
+
+        assertEquals(millis, blobId.getCreatedMillis());
+        assertEquals(millis, blobId.getCreated().toInstant().toEpochMilli());
+        assertEquals(blobId, BlobIdentifier.createFromStringId(blobId.toString()));
+    }
 }
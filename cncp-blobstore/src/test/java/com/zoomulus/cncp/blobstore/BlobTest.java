@@ -18,15 +18,22 @@
 package com.zoomulus.cncp.blobstore;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
 import static com.zoomulus.cncp.utils.Streams.randomInputStream;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -128,4 +135,78 @@ public class BlobTest {
 
         assertEquals(1024, writer.toString().length());
     }
+
+    @Test
+    public void testDirectReadByteBuffer() throws IOException {
+        Blob blob = blobStore.createBlob("test blob", 1024);
+        blob.write(randomInputStream((int) blob.getLength()));
+
+        try (DirectReadContext ctx = blob.getDirectReadContext()) {
+            assertEquals(1024, ctx.getLength());
+            ByteBuffer buffer = ctx.getByteBuffer();
+            assertEquals(1024, buffer.remaining());
+
+            ByteBuffer window = ctx.getByteBuffer(1000, 24);
+            assertEquals(24, window.remaining());
+            assertEquals(buffer.get(1000), window.get(0));
+        }
+    }
+
+    @Test
+    public void testReadRange() throws IOException {
+        Blob blob = blobStore.createBlob("test blob", 1024);
+        blob.write(randomInputStream((int) blob.getLength()));
+
+        byte[] all = ByteStreams.toByteArray(blob.read());
+        byte[] range = ByteStreams.toByteArray(blob.read(1000, 10));
+        assertArrayEquals(Arrays.copyOfRange(all, 1000, 1010), range);
+
+        assertEquals(24, ByteStreams.toByteArray(blob.read(1000, 100)).length);
+        assertEquals(0, ByteStreams.toByteArray(blob.read(2000, 100)).length);
+    }
+
+    @Test
+    public void testWriteDirectMultipart() throws IOException {
+        byte[] data = ByteStreams.toByteArray(randomInputStream(1000));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        assertEquals(4, ctx.getPartCount());
+
+        for (int partNumber = ctx.getPartCount(); partNumber > 1; partNumber--) {
+            int from = (int) ((partNumber - 1) * ctx.getPartSize());
+            int to = (int) Math.min(data.length, from + ctx.getPartSize());
+            ctx.writePart(partNumber, new ByteArrayInputStream(Arrays.copyOfRange(data, from, to)));
+        }
+        assertFalse(blob.endDirectWrite(ctx));
+
+        ctx.writePart(1, new ByteArrayInputStream(Arrays.copyOfRange(data, 0, (int) ctx.getPartSize())));
+        assertTrue(blob.endDirectWrite(ctx));
+        assertArrayEquals(data, ByteStreams.toByteArray(blob.read()));
+    }
+
+    @Test
+    public void testResumeDirectWrite() throws IOException {
+        byte[] data = ByteStreams.toByteArray(randomInputStream(512));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        DirectWriteContext ctx = blob.getDirectWriteContext();
+        ctx.writePart(1, new ByteArrayInputStream(data, 0, (int) ctx.getPartSize()));
+
+        DirectWriteContext resumed = blobStore.getBlob(blob.getId()).resumeDirectWrite(ctx.getEncodedToken());
+        assertEquals(Lists.newArrayList(2), resumed.getMissingParts());
+        resumed.writePart(2, new ByteArrayInputStream(data, (int) ctx.getPartSize(), (int) ctx.getPartSize()));
+        assertTrue(blob.endDirectWrite(resumed));
+        assertArrayEquals(data, ByteStreams.toByteArray(blob.read()));
+    }
+
+    @Test
+    public void testChecksums() throws IOException {
+        byte[] data = ByteStreams.toByteArray(randomInputStream(1024));
+        Blob blob = blobStore.createBlob("test blob", data.length);
+        blob.write(new ByteArrayInputStream(data));
+
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        assertEquals(crc.getValue(), blob.getChecksums().get().getCrc32c());
+        assertTrue(blob.verify());
+    }
 }
@@ -30,15 +30,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.zip.CRC32C;
 
 public class InMemoryBlobStore implements BlobStore {
     private static Logger LOG = LoggerFactory.getLogger(InMemoryBlobStore.class);
 
     private final byte[] secretKey = UUID.randomUUID().toString().getBytes();
 
+    static final long UPLOAD_PART_SIZE = 256;
+
     private Map<String, Blob> blobs = Maps.newConcurrentMap();
     private Map<String, ByteBuffer> store = Maps.newConcurrentMap();
+    private Map<String, BlobChecksums> checksums = Maps.newConcurrentMap();
+    private Map<String, InMemoryDirectWriteContext> uploads = Maps.newConcurrentMap();
 
     @Override
     @NotNull
@@ -68,6 +74,7 @@ public class InMemoryBlobStore implements BlobStore {
         }
         buffer.flip();
         store.put(blobId.toString(), buffer);
+        checksums.put(blobId.toString(), new BlobChecksums(crc32c(buffer), null));
     }
 
     @Override
@@ -77,9 +84,17 @@ public class InMemoryBlobStore implements BlobStore {
             throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
         }
         ByteBuffer buffer = store.get(blobId.toString());
-        InputStream is = new BufferedInputStream(new ByteArrayInputStream(buffer.array()));
-        buffer.flip();
-        return is;
+        return new BufferedInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.limit()));
+    }
+
+    @Override
+    @NotNull
+    public InputStream read(@NotNull final BlobIdentifier blobId, long offset, long length) throws BlobNotFoundException {
+        ByteBuffer buffer = store.get(blobId.toString());
+        if (null == buffer) {
+            throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
+        }
+        return new InMemoryDirectReadContext(buffer).getInputStream(offset, length);
     }
 
     @Override
@@ -87,27 +102,67 @@ public class InMemoryBlobStore implements BlobStore {
         return store.containsKey(blobId.toString());
     }
 
+    @Override
+    @NotNull
+    public Optional<BlobChecksums> getChecksums(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException {
+        if (! store.containsKey(blobId.toString())) {
+            throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
+        }
+        return Optional.ofNullable(checksums.get(blobId.toString()));
+    }
+
+    @Override
+    public boolean verify(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException {
+        ByteBuffer buffer = store.get(blobId.toString());
+        if (null == buffer) {
+            throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
+        }
+        BlobChecksums expected = checksums.get(blobId.toString());
+        return null != expected && expected.getCrc32c() == crc32c(buffer);
+    }
+
     @Override
     public boolean delete(@NotNull final BlobIdentifier blobId) {
         if (blobs.containsKey(blobId.toString())) {
             store.remove(blobId.toString());
+            checksums.remove(blobId.toString());
             blobs.remove(blobId.toString());
             return true;
         }
         return false;
     }
 
+    @Override
+    @NotNull
+    public Blob copy(@NotNull final BlobIdentifier blobId, @NotNull final String name) throws BlobNotFoundException {
+        ByteBuffer buffer = store.get(blobId.toString());
+        if (null == buffer) {
+            throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
+        }
+        Blob blob = createBlob(name, blobId.getLength());
+        // Writes replace a blob's buffer rather than change it, so it can be shared
+        store.put(blob.getId().toString(), buffer);
+        BlobChecksums blobChecksums = checksums.get(blobId.toString());
+        if (null != blobChecksums) {
+            checksums.put(blob.getId().toString(), blobChecksums);
+        }
+        return blob;
+    }
+
     @Override
     @Nullable
     public DirectWriteContext getDirectWriteContext(@NotNull final BlobIdentifier blobId) {
         String uploadId = UUID.randomUUID().toString();
         try {
-            return new InMemoryDirectWriteContext(
+            InMemoryDirectWriteContext ctx = new InMemoryDirectWriteContext(
                     new DirectWriteToken(blobId.toString(), uploadId).encode(getBlobStoreSecretKey()),
                     Lists.newArrayList(),
-                    blobId.getLength(),
+                    UPLOAD_PART_SIZE,
+                    UPLOAD_PART_SIZE,
                     blobId.getLength()
             );
+            uploads.put(uploadId, ctx);
+            return ctx;
         }
         catch (DirectWriteToken.SigningException e) {
             LOG.warn("Unable to sign upload token", e);
@@ -115,6 +170,23 @@ public class InMemoryBlobStore implements BlobStore {
         return null;
     }
 
+    @Override
+    @Nullable
+    public DirectWriteContext resumeDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final String encodedToken) {
+        try {
+            DirectWriteToken token = DirectWriteToken.fromEncodedString(encodedToken, getBlobStoreSecretKey());
+            if (! blobId.toString().equals(token.getBlobId())) {
+                LOG.warn("Tokens don't match");
+                return null;
+            }
+            return uploads.get(token.getUploadId());
+        }
+        catch (IllegalArgumentException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to resume direct write", e);
+        }
+        return null;
+    }
+
     @Override
     public boolean endDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final DirectWriteContext ctx) {
         try {
@@ -123,7 +195,14 @@ public class InMemoryBlobStore implements BlobStore {
                 LOG.warn("Tokens don't match");
                 return false;
             }
-            write(blobId, ((InMemoryDirectWriteContext) ctx).getInputStream());
+            InMemoryDirectWriteContext inMemoryCtx = (InMemoryDirectWriteContext) ctx;
+            if (! inMemoryCtx.isComplete()) {
+                LOG.warn("Direct write is missing parts");
+                return false;
+            }
+            write(blobId, inMemoryCtx.getInputStream());
+            uploads.remove(token.getUploadId());
+            return true;
         }
         catch (IOException | IllegalArgumentException | DirectWriteToken.SigningException e) {
             LOG.warn("Unable to complete direct write", e);
@@ -131,10 +210,36 @@ public class InMemoryBlobStore implements BlobStore {
         return false;
     }
 
+    @Override
+    public boolean abortDirectWrite(@NotNull final BlobIdentifier blobId, @NotNull final DirectWriteContext ctx) {
+        try {
+            DirectWriteToken token = DirectWriteToken.fromEncodedString(ctx.getEncodedToken(), getBlobStoreSecretKey());
+            if (! blobId.toString().equals(token.getBlobId())) {
+                LOG.warn("Tokens don't match");
+                return false;
+            }
+            return null != uploads.remove(token.getUploadId());
+        }
+        catch (IllegalArgumentException | DirectWriteToken.SigningException e) {
+            LOG.warn("Unable to abort direct write", e);
+        }
+        return false;
+    }
+
     @Override
     @Nullable
     public DirectReadContext getDirectReadContext(@NotNull final BlobIdentifier blobId) throws BlobNotFoundException {
-        return new InMemoryDirectReadContext(read(blobId));
+        ByteBuffer buffer = store.get(blobId.toString());
+        if (null == buffer) {
+            throw new BlobNotFoundException(String.format("No blob found for id '%s'", blobId.toString()));
+        }
+        return new InMemoryDirectReadContext(buffer);
+    }
+
+    private static long crc32c(@NotNull final ByteBuffer buffer) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return crc.getValue();
     }
 
     private byte[] getBlobStoreSecretKey() {
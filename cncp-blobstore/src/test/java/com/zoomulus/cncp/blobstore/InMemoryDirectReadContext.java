@@ -19,17 +19,82 @@ package com.zoomulus.cncp.blobstore;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public class InMemoryDirectReadContext implements DirectReadContext {
-    private @NotNull final InputStream inputStream;
+    private @NotNull final ByteBuffer buffer;
 
-    public InMemoryDirectReadContext(@NotNull final InputStream inputStream) {
-        this.inputStream = inputStream;
+    public InMemoryDirectReadContext(@NotNull final ByteBuffer buffer) {
+        this.buffer = buffer.asReadOnlyBuffer();
     }
 
     @Override
     public InputStream getInputStream() {
-        return inputStream;
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return new ByteArrayInputStream(data);
     }
+
+    @Override
+    public InputStream getInputStream(long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range offset %d length %d", offset, length));
+        }
+        int start = (int) Math.min(offset, buffer.remaining());
+        int count = (int) Math.min(length, buffer.remaining() - start);
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(slice.position() + start);
+        byte[] data = new byte[count];
+        slice.get(data);
+        return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public long getLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    @NotNull
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(getInputStream());
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer getByteBuffer() {
+        return buffer.duplicate();
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer getByteBuffer(long position, long size) {
+        if (position < 0 || size < 0 || position + size > buffer.remaining()) {
+            throw new IllegalArgumentException(String.format("Cannot map range [%d, %d) of blob with length %d",
+                    position, position + size, buffer.remaining()));
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(slice.position() + (int) position);
+        slice.limit(slice.position() + (int) size);
+        return slice.slice();
+    }
+
+    @Override
+    public long transferTo(@NotNull final WritableByteChannel target) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        long transferred = 0;
+        while (source.hasRemaining()) {
+            transferred += target.write(source);
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() { }
 }
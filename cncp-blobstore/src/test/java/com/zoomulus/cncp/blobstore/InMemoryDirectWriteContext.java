@@ -17,6 +17,8 @@
 
 package com.zoomulus.cncp.blobstore;
 
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.ByteArrayInputStream;
@@ -24,34 +26,99 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32C;
 
 public class InMemoryDirectWriteContext implements DirectWriteContext {
     private @NotNull final String encodedToken;
     private @NotNull final List<URI> uploadURIs;
     private long minUploadSize;
     private long maxUploadSize;
+    private long length;
 
-    private InputStream inputStream = new ByteArrayInputStream(new String("").getBytes());
+    private final SortedMap<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
 
     public InMemoryDirectWriteContext(
             @NotNull final String encodedToken,
             @NotNull List<URI> uploadURIs,
             long minUploadSize,
-            long maxUploadSize) {
+            long maxUploadSize,
+            long length) {
         this.encodedToken = encodedToken;
         this.uploadURIs = uploadURIs;
         this.minUploadSize = minUploadSize;
         this.maxUploadSize = maxUploadSize;
+        this.length = length;
     }
 
     @Override
     public void write(@NotNull final InputStream inputStream) throws IOException  {
-        this.inputStream = inputStream;
+        parts.clear();
+        byte[] data = ByteStreams.toByteArray(inputStream);
+        for (int i=0; i<getPartCount(); i++) {
+            int from = (int) (i * getPartSize());
+            int to = (int) Math.min(data.length, from + getPartSize());
+            writePart(i + 1, new ByteArrayInputStream(data, from, Math.max(0, to - from)));
+        }
+    }
+
+    @Override
+    public void writePart(int partNumber, @NotNull final InputStream inputStream) throws IOException {
+        if (partNumber < 1 || partNumber > getPartCount()) {
+            throw new IllegalArgumentException(String.format("Part number %d is out of range 1-%d", partNumber, getPartCount()));
+        }
+        parts.put(partNumber, ByteStreams.toByteArray(inputStream));
+    }
+
+    @Override
+    public long getPartSize() {
+        return Math.max(1, maxUploadSize);
+    }
+
+    @Override
+    public int getPartCount() {
+        return (int) Math.max(1, (length + getPartSize() - 1) / getPartSize());
+    }
+
+    @Override
+    @NotNull
+    public List<Integer> getMissingParts() {
+        List<Integer> missing = Lists.newArrayList();
+        for (int partNumber = 1; partNumber <= getPartCount(); partNumber++) {
+            if (! parts.containsKey(partNumber)) {
+                missing.add(partNumber);
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    @NotNull
+    public OptionalLong getPartChecksum(int partNumber) {
+        byte[] part = parts.get(partNumber);
+        if (null == part) {
+            return OptionalLong.empty();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(part);
+        return OptionalLong.of(crc.getValue());
+    }
+
+    public boolean isComplete() {
+        return parts.size() == getPartCount();
     }
 
     @NotNull
     public InputStream getInputStream() {
-        return inputStream;
+        byte[] data = new byte[(int) length];
+        int offset = 0;
+        for (byte[] part : parts.values()) {
+            System.arraycopy(part, 0, data, offset, part.length);
+            offset += part.length;
+        }
+        return new ByteArrayInputStream(data);
     }
 
     @Override
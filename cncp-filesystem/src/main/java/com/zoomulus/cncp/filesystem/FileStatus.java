@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.filesystem;
+
+import com.zoomulus.cncp.nodestore.Content;
+import com.zoomulus.cncp.nodestore.Node;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.OffsetDateTime;
+import java.util.Optional;
+
+/**
+ * What {@link FileSystem#stat(String)} reports about a file or directory.
+ */
+public class FileStatus {
+    private final String path;
+    private final String name;
+    private final Content content;
+    private final int childCount;
+    private final OffsetDateTime created;
+    private final OffsetDateTime lastModified;
+
+    FileStatus(@NotNull final Node node) {
+        path = node.getFullName();
+        name = node.getSimpleName();
+        content = node.getContent().orElse(null);
+        childCount = null == content ? node.getChildCount() : 0;
+        created = node.getCreated();
+        lastModified = node.getLastModified();
+    }
+
+    @NotNull
+    public String getPath() {
+        return path;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return null == content;
+    }
+
+    public boolean isFile() {
+        return null != content;
+    }
+
+    /**
+     * The length of a file's content; zero for a directory.
+     */
+    public long getLength() {
+        return null == content ? 0 : content.getContentLength();
+    }
+
+    @NotNull
+    public Optional<String> getContentType() {
+        return null == content ? Optional.empty() : Optional.of(content.getContentType());
+    }
+
+    /**
+     * The number of entries in a directory; zero for a file.
+     */
+    public int getChildCount() {
+        return childCount;
+    }
+
+    @NotNull
+    public OffsetDateTime getCreated() {
+        return created;
+    }
+
+    @NotNull
+    public OffsetDateTime getLastModified() {
+        return lastModified;
+    }
+
+    @Nullable
+    Content getContent() {
+        return content;
+    }
+}
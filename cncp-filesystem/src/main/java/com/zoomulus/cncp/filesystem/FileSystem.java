@@ -17,35 +17,435 @@
 
 package com.zoomulus.cncp.filesystem;
 
+import com.zoomulus.cncp.blobstore.Blob;
+import com.zoomulus.cncp.blobstore.BlobIdentifier;
 import com.zoomulus.cncp.blobstore.BlobStore;
+import com.zoomulus.cncp.nodestore.ChildPage;
+import com.zoomulus.cncp.nodestore.Content;
+import com.zoomulus.cncp.nodestore.Node;
+import com.zoomulus.cncp.nodestore.NodeBatch;
+import com.zoomulus.cncp.nodestore.NodeNotFoundException;
 import com.zoomulus.cncp.nodestore.NodeStore;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import java.io.File;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.Optional;
 
+/**
+ * A POSIX-like file system over a {@link NodeStore} and a {@link BlobStore}.
+ * Directories are nodes without content; files are nodes whose
+ * {@link Content} names the blob holding their data.
+ *
+ * Each client should work through its own {@link FileSystemSession}, which
+ * carries its working directory as a node; the operations on the file system
+ * itself go through a shared default session.  Every operation normalizes its
+ * path once into a {@link Location} and resolves it from the node it is
+ * anchored at.  File data is streamed straight between the caller and the
+ * blob store.  A file's blob is written before it is linked into the tree and
+ * deleted after it is unlinked, so a failure can orphan a blob but never
+ * leaves a file pointing at missing data.  A file copied with {@link #copy}
+ * gets a blob of its own; files in a cloned tree share blobs with the source
+ * until one side is changed, and a shared blob is only deleted once the last
+ * file using it is gone.
+ *
+ * Changes to the namespace are serialized so that checking for an existing
+ * entry and creating it happen together; reads take no lock.
+ */
 public class FileSystem {
-    private String cwd = File.separator;
+    private static Logger LOG = LoggerFactory.getLogger(FileSystem.class);
+
+    public static final String SEPARATOR = "/";
+
     private final NodeStore nodeStore;
     private final BlobStore blobStore;
+    private final FileSystemSession defaultSession;
+    private final Object namespaceLock = new Object();
 
     @Inject
     public FileSystem(@NotNull final NodeStore nodeStore, @NotNull final BlobStore blobStore) {
         this.nodeStore = nodeStore;
         this.blobStore = blobStore;
+        defaultSession = new FileSystemSession(this, nodeStore.getRoot());
+    }
+
+    /**
+     * Starts a session whose working directory is the root.
+     */
+    @NotNull
+    public FileSystemSession openSession() {
+        return new FileSystemSession(this, nodeStore.getRoot());
+    }
+
+    /**
+     * Starts a session in a directory, resolved against this file system's
+     * own working directory if relative.
+     */
+    @NotNull
+    public FileSystemSession openSession(@NotNull final String cwd) throws IOException {
+        FileSystemSession session = openSession();
+        session.cd(normalize(cwd));
+        return session;
     }
 
     public String getCwd() {
-        return cwd;
+        return defaultSession.getCwd();
+    }
+
+    public void cd(@NotNull final String newDir) throws IOException {
+        defaultSession.cd(newDir);
+    }
+
+    /**
+     * Turns a path into an absolute path with no empty, '.' or '..' segments,
+     * resolving it against the current working directory if it is relative.
+     */
+    @NotNull
+    public String normalize(@NotNull final String path) {
+        return defaultSession.normalize(path);
+    }
+
+    @NotNull
+    public FileStatus stat(@NotNull final String path) throws IOException {
+        return defaultSession.stat(path);
+    }
+
+    public boolean exists(@NotNull final String path) {
+        return defaultSession.exists(path);
+    }
+
+    /**
+     * Creates a directory and any missing parents, like {@code mkdir -p}.
+     */
+    @NotNull
+    public FileStatus mkdirs(@NotNull final String path) throws IOException {
+        return defaultSession.mkdirs(path);
+    }
+
+    /**
+     * Lists one page of a directory's entries in name order.
+     */
+    @NotNull
+    public ChildPage list(@NotNull final String path, @Nullable final String startAfter, int limit) throws IOException {
+        return defaultSession.list(path, startAfter, limit);
+    }
+
+    @NotNull
+    public InputStream open(@NotNull final String path) throws IOException {
+        return defaultSession.open(path);
     }
 
-    public void cd(@NotNull final String newDir) {
-        if (newDir.startsWith(File.separator)) {
-            cwd = newDir;
+    @NotNull
+    public InputStream open(@NotNull final String path, long offset, long length) throws IOException {
+        return defaultSession.open(path, offset, length);
+    }
+
+    /**
+     * Creates a file or replaces an existing file's data with {@code length}
+     * bytes read from {@code data}.  The parent directory must exist.
+     */
+    @NotNull
+    public FileStatus write(@NotNull final String path, @NotNull final InputStream data, long length) throws IOException {
+        return defaultSession.write(path, data, length);
+    }
+
+    /**
+     * Copies a file, creating or replacing the target.  The copy gets its own
+     * blob, but the blob store may share the data with the source's, so a
+     * copy need not cost as much as the data it holds.
+     */
+    @NotNull
+    public FileStatus copy(@NotNull final String from, @NotNull final String to) throws IOException {
+        return defaultSession.copy(from, to);
+    }
+
+    /**
+     * Makes a writable copy of a directory tree or file at a new path, which
+     * must not exist yet.  The copy shares nodes and blobs with the source
+     * until either side changes, so it costs the same however large the
+     * tree.
+     */
+    @NotNull
+    public FileStatus cloneTree(@NotNull final String from, @NotNull final String to) throws IOException {
+        return defaultSession.cloneTree(from, to);
+    }
+
+    /**
+     * Moves a file or directory.  An existing file may be replaced by a file
+     * and an empty directory by a directory.  The node is relinked in place,
+     * so moving a directory costs the same however much it holds.
+     */
+    public void rename(@NotNull final String from, @NotNull final String to) throws IOException {
+        defaultSession.rename(from, to);
+    }
+
+    /**
+     * Removes a file and deletes its data.
+     */
+    public void unlink(@NotNull final String path) throws IOException {
+        defaultSession.unlink(path);
+    }
+
+    /**
+     * Removes an empty directory.
+     */
+    public void rmdir(@NotNull final String path) throws IOException {
+        defaultSession.rmdir(path);
+    }
+
+    @NotNull
+    Location locate(@NotNull final Node cwd, @NotNull final String path) {
+        return Location.of(nodeStore.getRoot(), cwd, path);
+    }
+
+    @NotNull
+    Optional<Node> resolve(@NotNull final Location location) {
+        return nodeStore.resolve(location.anchor, location.relativePath());
+    }
+
+    @NotNull
+    FileStatus mkdirs(@NotNull final Location location) throws IOException {
+        synchronized (namespaceLock) {
+            Node node = node(location.atAnchor());
+            for (String segment : location.segments) {
+                Node child = child(node, segment);
+                if (null == child) {
+                    child = node.addChild(segment);
+                }
+                else if (child.getContent().isPresent()) {
+                    throw new NotDirectoryException(child.getFullName());
+                }
+                node = child;
+            }
+            return new FileStatus(node);
         }
-        else {
-            cwd = Paths.get(cwd, newDir).toString();
+    }
+
+    @NotNull
+    InputStream open(@NotNull final Location location) throws IOException {
+        return blobStore.read(blobId(file(location)));
+    }
+
+    @NotNull
+    InputStream open(@NotNull final Location location, long offset, long length) throws IOException {
+        return blobStore.read(blobId(file(location)), offset, length);
+    }
+
+    @NotNull
+    FileStatus write(@NotNull final Location location, @NotNull final InputStream data, long length) throws IOException {
+        checkNotRoot(location);
+        String name = location.name();
+        Node parent = directory(location.parent());
+        Node existing = child(parent, name);
+        if (null != existing && ! existing.getContent().isPresent()) {
+            throw new FileSystemException(location.absolutePath(), null, "Is a directory");
+        }
+
+        Blob blob = blobStore.createBlob(name, length);
+        blobStore.write(blob.getId(), data);
+        return link(location, parent, blob);
+    }
+
+    @NotNull
+    FileStatus copy(@NotNull final Location from, @NotNull final Location to) throws IOException {
+        checkNotRoot(to);
+        Node source = file(from);
+        String name = to.name();
+        Node parent = directory(to.parent());
+        Node existing = child(parent, name);
+        if (null != existing && ! existing.getContent().isPresent()) {
+            throw new FileSystemException(to.absolutePath(), null, "Is a directory");
+        }
+        return link(to, parent, blobStore.copy(blobId(source), name));
+    }
+
+    /**
+     * Points a new or existing file at a blob that has already been written,
+     * deleting the blob if the file cannot be linked and the file's previous
+     * blob if it had one.
+     */
+    @NotNull
+    private FileStatus link(@NotNull final Location location, @NotNull final Node parent, @NotNull final Blob blob)
+            throws IOException {
+        String name = location.name();
+        Content content = new Content(name, blob.getId().toString(), blob.getLength());
+        Node existing;
+        Content replaced;
+        Node file;
+        synchronized (namespaceLock) {
+            existing = child(parent, name);
+            if (null != existing && ! existing.getContent().isPresent()) {
+                blobStore.delete(blob.getId());
+                throw new FileSystemException(location.absolutePath(), null, "Is a directory");
+            }
+            replaced = null == existing ? null : existing.getContent().orElse(null);
+            NodeBatch batch = nodeStore.batch(parent);
+            if (null == existing) {
+                batch.addChild(name);
+            }
+            batch.setContent(name, content);
+            try {
+                batch.commit();
+                file = parent.getChild(name);
+            }
+            catch (NodeNotFoundException e) {
+                blobStore.delete(blob.getId());
+                throw new NoSuchFileException(location.parent().absolutePath());
+            }
+        }
+        release(replaced);
+        return new FileStatus(file);
+    }
+
+    @NotNull
+    FileStatus cloneTree(@NotNull final Location from, @NotNull final Location to) throws IOException {
+        checkNotRoot(to);
+        synchronized (namespaceLock) {
+            Node source = node(from);
+            Node targetParent = directory(to.parent());
+            if (null != child(targetParent, to.name())) {
+                throw new FileAlreadyExistsException(to.absolutePath());
+            }
+            try {
+                return new FileStatus(nodeStore.cloneSubtree(source, targetParent, to.name()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new FileSystemException(from.absolutePath(), to.absolutePath(), "Invalid argument");
+            }
+            catch (NodeNotFoundException e) {
+                throw new NoSuchFileException(from.absolutePath());
+            }
+        }
+    }
+
+    void rename(@NotNull final Location from, @NotNull final Location to) throws IOException {
+        checkNotRoot(from);
+        checkNotRoot(to);
+        String source = from.absolutePath();
+        String target = to.absolutePath();
+        if (target.startsWith(source + SEPARATOR)) {
+            throw new FileSystemException(source, target, "Invalid argument");
+        }
+        if (source.equals(target)) {
+            node(from);
+            return;
+        }
+        Content replaced = null;
+        synchronized (namespaceLock) {
+            Node node = node(from);
+            Node targetParent = directory(to.parent());
+            Node existing = child(targetParent, to.name());
+            boolean directory = ! node.getContent().isPresent();
+            if (null != existing) {
+                Optional<Content> existingContent = existing.getContent();
+                if (directory && existingContent.isPresent()) {
+                    throw new NotDirectoryException(target);
+                }
+                if (! directory && ! existingContent.isPresent()) {
+                    throw new FileSystemException(target, null, "Is a directory");
+                }
+                if (directory && existing.hasChildren()) {
+                    throw new DirectoryNotEmptyException(target);
+                }
+                replaced = existingContent.orElse(null);
+            }
+            try {
+                nodeStore.move(node, targetParent, to.name());
+            }
+            catch (NodeNotFoundException e) {
+                throw new NoSuchFileException(source);
+            }
+        }
+        release(replaced);
+    }
+
+    void unlink(@NotNull final Location location) throws IOException {
+        checkNotRoot(location);
+        Content content;
+        synchronized (namespaceLock) {
+            Node node = file(location);
+            content = node.getContent().get();
+            if (! directory(location.parent()).deleteChild(location.name())) {
+                throw new NoSuchFileException(location.absolutePath());
+            }
+        }
+        release(content);
+    }
+
+    void rmdir(@NotNull final Location location) throws IOException {
+        checkNotRoot(location);
+        synchronized (namespaceLock) {
+            Node node = directory(location);
+            if (node.hasChildren()) {
+                throw new DirectoryNotEmptyException(location.absolutePath());
+            }
+            directory(location.parent()).deleteChild(location.name());
+        }
+    }
+
+    /**
+     * Deletes a blob no longer used by a file, unless a clone still uses it.
+     */
+    private void release(@Nullable final Content content) {
+        if (null != content && nodeStore.releaseContent(content) && ! blobStore.delete(BlobIdentifier.createFromStringId(content.getIdentifier()))) {
+            LOG.warn("Blob {} for {} was already gone", content.getIdentifier(), content.getCommonName());
+        }
+    }
+
+    @NotNull
+    Node node(@NotNull final Location location) throws NoSuchFileException {
+        Optional<Node> node = resolve(location);
+        if (! node.isPresent()) {
+            throw new NoSuchFileException(location.absolutePath());
+        }
+        return node.get();
+    }
+
+    @NotNull
+    Node directory(@NotNull final Location location) throws IOException {
+        Node node = node(location);
+        if (node.getContent().isPresent()) {
+            throw new NotDirectoryException(location.absolutePath());
+        }
+        return node;
+    }
+
+    @NotNull
+    private Node file(@NotNull final Location location) throws IOException {
+        Node node = node(location);
+        if (! node.getContent().isPresent()) {
+            throw new FileSystemException(location.absolutePath(), null, "Is a directory");
+        }
+        return node;
+    }
+
+    private void checkNotRoot(@NotNull final Location location) throws IOException {
+        if (location.isAnchor() && ! location.anchor.getParent().isPresent()) {
+            throw new FileSystemException(SEPARATOR, null, "Device or resource busy");
         }
     }
+
+    @Nullable
+    private static Node child(@NotNull final Node parent, @NotNull final String name) {
+        try {
+            return parent.getChild(name);
+        }
+        catch (NodeNotFoundException e) {
+            return null;
+        }
+    }
+
+    @NotNull
+    private static BlobIdentifier blobId(@NotNull final Node file) {
+        return BlobIdentifier.createFromStringId(file.getContent().get().getIdentifier());
+    }
 }
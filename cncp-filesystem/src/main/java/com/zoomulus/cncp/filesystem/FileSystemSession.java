@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.filesystem;
+
+import com.zoomulus.cncp.nodestore.ChildPage;
+import com.zoomulus.cncp.nodestore.Node;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One client's view of a {@link FileSystem}: the same operations, with
+ * relative paths taken from the session's own working directory.  The
+ * working directory is held as a node, so relative paths are resolved from
+ * it directly.  Sessions are cheap, and many can share a file system, but a
+ * single session is meant to be used by one caller at a time.
+ */
+public class FileSystemSession {
+    private final FileSystem fs;
+    private volatile Node cwd;
+
+    FileSystemSession(@NotNull final FileSystem fs, @NotNull final Node cwd) {
+        this.fs = fs;
+        this.cwd = cwd;
+    }
+
+    @NotNull
+    public String getCwd() {
+        return cwd.getFullName();
+    }
+
+    public void cd(@NotNull final String newDir) throws IOException {
+        cwd = fs.directory(locate(newDir));
+    }
+
+    @NotNull
+    public String normalize(@NotNull final String path) {
+        return locate(path).absolutePath();
+    }
+
+    @NotNull
+    public FileStatus stat(@NotNull final String path) throws IOException {
+        return new FileStatus(fs.node(locate(path)));
+    }
+
+    public boolean exists(@NotNull final String path) {
+        return fs.resolve(locate(path)).isPresent();
+    }
+
+    @NotNull
+    public FileStatus mkdirs(@NotNull final String path) throws IOException {
+        return fs.mkdirs(locate(path));
+    }
+
+    @NotNull
+    public ChildPage list(@NotNull final String path, @Nullable final String startAfter, int limit) throws IOException {
+        return fs.directory(locate(path)).listChildren(startAfter, limit);
+    }
+
+    @NotNull
+    public InputStream open(@NotNull final String path) throws IOException {
+        return fs.open(locate(path));
+    }
+
+    @NotNull
+    public InputStream open(@NotNull final String path, long offset, long length) throws IOException {
+        return fs.open(locate(path), offset, length);
+    }
+
+    @NotNull
+    public FileStatus write(@NotNull final String path, @NotNull final InputStream data, long length) throws IOException {
+        return fs.write(locate(path), data, length);
+    }
+
+    @NotNull
+    public FileStatus copy(@NotNull final String from, @NotNull final String to) throws IOException {
+        return fs.copy(locate(from), locate(to));
+    }
+
+    @NotNull
+    public FileStatus cloneTree(@NotNull final String from, @NotNull final String to) throws IOException {
+        return fs.cloneTree(locate(from), locate(to));
+    }
+
+    public void rename(@NotNull final String from, @NotNull final String to) throws IOException {
+        fs.rename(locate(from), locate(to));
+    }
+
+    public void unlink(@NotNull final String path) throws IOException {
+        fs.unlink(locate(path));
+    }
+
+    public void rmdir(@NotNull final String path) throws IOException {
+        fs.rmdir(locate(path));
+    }
+
+    @NotNull
+    private Location locate(@NotNull final String path) {
+        return fs.locate(cwd, path);
+    }
+}
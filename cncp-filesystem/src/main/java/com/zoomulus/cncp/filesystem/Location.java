@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.filesystem;
+
+import com.google.common.base.Joiner;
+import com.zoomulus.cncp.nodestore.Node;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A normalized path held as the node it starts from plus the names below
+ * it.  Relative paths start from a session's working directory and leading
+ * '..' segments are applied by stepping up parent links, so resolving one
+ * never walks down from the root.
+ */
+final class Location {
+    private static final Joiner JOINER = Joiner.on(FileSystem.SEPARATOR);
+
+    final Node anchor;
+    final List<String> segments;
+
+    private Location(@NotNull final Node anchor, @NotNull final List<String> segments) {
+        this.anchor = anchor;
+        this.segments = segments;
+    }
+
+    @NotNull
+    static Location of(@NotNull final Node root, @NotNull final Node cwd, @NotNull final String path) {
+        if (path.indexOf('\0') >= 0) {
+            throw new InvalidPathException(path, "Path contains a null character");
+        }
+        Node anchor = path.startsWith(FileSystem.SEPARATOR) ? root : cwd;
+        List<String> segments = new ArrayList<>();
+        int begin = 0;
+        while (begin <= path.length()) {
+            int end = path.indexOf('/', begin);
+            if (end < 0) {
+                end = path.length();
+            }
+            String segment = path.substring(begin, end);
+            if ("..".equals(segment)) {
+                if (! segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+                else {
+                    anchor = anchor.getParent().orElse(anchor);
+                }
+            }
+            else if (! segment.isEmpty() && ! ".".equals(segment)) {
+                segments.add(segment);
+            }
+            begin = end + 1;
+        }
+        return new Location(anchor, segments);
+    }
+
+    @NotNull
+    Location atAnchor() {
+        return new Location(anchor, Collections.emptyList());
+    }
+
+    boolean isAnchor() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * The last name in the path, or the anchor's own name if there is none.
+     */
+    @NotNull
+    String name() {
+        return segments.isEmpty() ? anchor.getSimpleName() : segments.get(segments.size() - 1);
+    }
+
+    @NotNull
+    Location parent() {
+        if (segments.isEmpty()) {
+            return new Location(anchor.getParent().orElse(anchor), segments);
+        }
+        return new Location(anchor, segments.subList(0, segments.size() - 1));
+    }
+
+    @NotNull
+    String relativePath() {
+        return JOINER.join(segments);
+    }
+
+    @NotNull
+    String absolutePath() {
+        String base = anchor.getFullName();
+        if (segments.isEmpty()) {
+            return base;
+        }
+        return (FileSystem.SEPARATOR.equals(base) ? "" : base) + FileSystem.SEPARATOR + relativePath();
+    }
+
+    @Override
+    public String toString() {
+        return absolutePath();
+    }
+}
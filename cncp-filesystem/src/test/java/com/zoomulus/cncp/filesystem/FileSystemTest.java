@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.filesystem;
+
+import com.google.common.io.ByteStreams;
+import com.zoomulus.cncp.blobstore.InMemoryBlobStore;
+import com.zoomulus.cncp.nodestore.ChildPage;
+import com.zoomulus.cncp.nodestore.InMemoryNodeStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileSystemTest {
+    private FileSystem fs;
+
+    @Before
+    public void setup() {
+        fs = new FileSystem(new InMemoryNodeStore(), new InMemoryBlobStore());
+    }
+
+    private FileStatus write(String path, String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return fs.write(path, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private String read(String path) throws IOException {
+        try (InputStream in = fs.open(path)) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void testNormalize() throws IOException {
+        assertEquals("/", fs.normalize(""));
+        assertEquals("/", fs.normalize("/../.."));
+        assertEquals("/a/c", fs.normalize("//a/./b/../c/"));
+        fs.mkdirs("/home/user");
+        fs.cd("/home/user");
+        assertEquals("/home/user/docs", fs.normalize("docs"));
+        assertEquals("/home/other", fs.normalize("../other"));
+    }
+
+    @Test
+    public void testMkdirsAndStat() throws IOException {
+        FileStatus status = fs.mkdirs("/a/b/c");
+        assertTrue(status.isDirectory());
+        assertEquals("/a/b/c", status.getPath());
+        assertEquals(1, fs.stat("/a/b").getChildCount());
+        fs.mkdirs("/a/b/c");
+        assertEquals(1, fs.stat("/a/b").getChildCount());
+
+        write("/a/file.txt", "data");
+        try {
+            fs.mkdirs("/a/file.txt/d");
+            fail();
+        }
+        catch (NotDirectoryException e) { }
+        try {
+            fs.stat("/a/missing");
+            fail();
+        }
+        catch (NoSuchFileException e) { }
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        fs.mkdirs("/docs");
+        FileStatus status = write("/docs/readme.txt", "hello world");
+        assertTrue(status.isFile());
+        assertEquals(11, status.getLength());
+        assertEquals("hello world", read("/docs/readme.txt"));
+
+        write("/docs/readme.txt", "replaced");
+        assertEquals("replaced", read("/docs/readme.txt"));
+        assertEquals(8, fs.stat("/docs/readme.txt").getLength());
+        assertEquals(1, fs.stat("/docs").getChildCount());
+
+        try (InputStream in = fs.open("/docs/readme.txt", 2, 3)) {
+            assertEquals("pla", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        }
+        try {
+            write("/missing/file.txt", "data");
+            fail();
+        }
+        catch (NoSuchFileException e) { }
+        try {
+            write("/docs", "data");
+            fail();
+        }
+        catch (FileSystemException e) { }
+    }
+
+    @Test
+    public void testUnlinkAndRmdir() throws IOException {
+        fs.mkdirs("/dir");
+        write("/dir/file", "data");
+        try {
+            fs.rmdir("/dir");
+            fail();
+        }
+        catch (DirectoryNotEmptyException e) { }
+        try {
+            fs.unlink("/dir");
+            fail();
+        }
+        catch (FileSystemException e) { }
+
+        fs.unlink("/dir/file");
+        assertFalse(fs.exists("/dir/file"));
+        fs.rmdir("/dir");
+        assertFalse(fs.exists("/dir"));
+    }
+
+    @Test
+    public void testRename() throws IOException {
+        fs.mkdirs("/src/sub");
+        write("/src/sub/file", "data");
+        write("/other", "other data");
+
+        fs.rename("/src", "/dst");
+        assertFalse(fs.exists("/src"));
+        assertEquals("data", read("/dst/sub/file"));
+
+        fs.rename("/dst/sub/file", "/other");
+        assertEquals("data", read("/other"));
+        assertFalse(fs.exists("/dst/sub/file"));
+
+        try {
+            fs.rename("/dst", "/dst/sub/inside");
+            fail();
+        }
+        catch (FileSystemException e) { }
+        try {
+            fs.rename("/dst", "/other");
+            fail();
+        }
+        catch (NotDirectoryException e) { }
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        fs.mkdirs("/a");
+        fs.mkdirs("/b");
+        write("/a/file", "data");
+
+        assertEquals(4, fs.copy("/a/file", "/b/file").getLength());
+        fs.unlink("/a/file");
+        assertEquals("data", read("/b/file"));
+
+        write("/b/other", "other data");
+        fs.copy("/b/file", "/b/other");
+        assertEquals("data", read("/b/other"));
+        try {
+            fs.copy("/b", "/c");
+            fail();
+        }
+        catch (FileSystemException e) { }
+    }
+
+    @Test
+    public void testCloneTree() throws IOException {
+        fs.mkdirs("/a/sub");
+        write("/a/sub/file", "data");
+
+        fs.cloneTree("/a", "/b");
+        fs.unlink("/a/sub/file");
+        assertEquals("data", read("/b/sub/file"));
+
+        write("/b/sub/other", "other data");
+        assertFalse(fs.exists("/a/sub/other"));
+        try {
+            fs.cloneTree("/a", "/b");
+            fail();
+        }
+        catch (FileAlreadyExistsException e) { }
+        try {
+            fs.cloneTree("/missing", "/c");
+            fail();
+        }
+        catch (NoSuchFileException e) { }
+    }
+
+    @Test
+    public void testList() throws IOException {
+        fs.mkdirs("/dir");
+        for (int i = 0; i < 5; i++) {
+            write("/dir/f" + i, "x");
+        }
+        ChildPage page = fs.list("/dir", null, 3);
+        assertEquals(3, page.getChildren().size());
+        page = fs.list("/dir", page.getContinuationToken().get(), 3);
+        assertEquals(2, page.getChildren().size());
+        assertFalse(page.getContinuationToken().isPresent());
+    }
+
+    @Test
+    public void testSessions() throws IOException {
+        fs.mkdirs("/home/alice/docs");
+        fs.mkdirs("/home/bob");
+        FileSystemSession alice = fs.openSession("/home/alice");
+        FileSystemSession bob = fs.openSession();
+        bob.cd("home/bob");
+
+        alice.write("docs/note", new ByteArrayInputStream(new byte[] { 1, 2 }), 2);
+        assertEquals("/home/alice/docs/note", alice.stat("docs/note").getPath());
+        assertTrue(bob.exists("../alice/docs/note"));
+        assertFalse(bob.exists("docs/note"));
+        assertEquals("/", fs.getCwd());
+
+        alice.cd("docs");
+        assertEquals("/home/alice/docs", alice.getCwd());
+        assertEquals("/home/bob", bob.getCwd());
+        try {
+            bob.cd("../alice/docs/note");
+            fail();
+        }
+        catch (NotDirectoryException e) { }
+
+        alice.unlink("note");
+        fs.rmdir("/home/alice/docs");
+        try {
+            alice.stat(".");
+            fail();
+        }
+        catch (NoSuchFileException e) { }
+        assertTrue(alice.exists(".."));
+    }
+}
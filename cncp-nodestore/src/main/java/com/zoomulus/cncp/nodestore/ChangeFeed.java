@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, sequence-numbered record of the changes made to a node store.
+ *
+ * Changes are kept in a ring buffer, so publishing never waits on consumers:
+ * once the ring is full the oldest change is overwritten, and a subscription
+ * that had not reached it yet is told it overflowed.  Each subscription keeps
+ * its own cursor and is drained on the executor, so one slow listener does
+ * not hold up the others.
+ *
+ * Publishing takes no lock: a change claims its sequence number from a
+ * counter and is then stored in its ring slot, which carries the sequence
+ * number so readers can tell a change not yet stored from one overwritten.
+ * Subscriptions stop at the first change not yet stored, and its publisher
+ * wakes them once it is.
+ *
+ * Sequence numbers follow the order changes are published in.  Concurrent
+ * writes to the same node may be published in either order, which is why
+ * changes name what changed rather than carrying the new values.
+ *
+ * Until the feed is first subscribed to or asked for its sequence number
+ * nobody can hold a position in it to resume from, so it is inactive and
+ * the store does not publish to it at all.
+ */
+class ChangeFeed {
+    private final AtomicReferenceArray<NodeChange> ring;
+    private final int mask;
+    private final Executor executor;
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastSequence = new AtomicLong();
+    private volatile boolean active;
+
+    ChangeFeed(int capacity, @NotNull final Executor executor) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(String.format("Change feed capacity %d is not a power of two", capacity));
+        }
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        this.executor = executor;
+    }
+
+    /**
+     * Whether anyone may want the changes published from now on.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * The sequence number of the last change published, making the feed
+     * active so that later changes can be resumed from it.
+     */
+    long activate() {
+        active = true;
+        return lastSequence.get();
+    }
+
+    long getLastSequence() {
+        return lastSequence.get();
+    }
+
+    /**
+     * The oldest sequence number still held, or the next one to be published
+     * if the feed is empty.
+     */
+    long getOldestSequence() {
+        return Math.max(1, lastSequence.get() - mask);
+    }
+
+    void publish(@NotNull final NodeChange.Type type, @NotNull final String path, @Nullable final String key, long timestamp) {
+        long sequence = lastSequence.incrementAndGet();
+        NodeChange change = new NodeChange(sequence, type, path, key, timestamp);
+        int slot = (int) (sequence & mask);
+        for (;;) {
+            NodeChange previous = ring.get(slot);
+            // A slow publisher must not overwrite a change that has already lapped it
+            if ((null != previous && previous.getSequence() > sequence) || ring.compareAndSet(slot, previous, change)) {
+                break;
+            }
+        }
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * The change with a sequence number, or null if it has been overwritten.
+     * Only call this for a change that {@link #isPending} says is stored.
+     */
+    @Nullable
+    NodeChange get(long sequence) {
+        NodeChange change = ring.get((int) (sequence & mask));
+        return null == change || change.getSequence() != sequence ? null : change;
+    }
+
+    /**
+     * Whether a claimed sequence number's change is still being stored.
+     */
+    boolean isPending(long sequence) {
+        NodeChange change = ring.get((int) (sequence & mask));
+        return null == change || change.getSequence() < sequence;
+    }
+
+    @NotNull
+    ChangeSubscription subscribe(@NotNull final String path, long fromSequence, @NotNull final ChangeListener listener) {
+        active = true;
+        ChangeSubscription subscription = new ChangeSubscription(this, path, fromSequence, listener, executor);
+        subscriptions.add(subscription);
+        subscription.schedule();
+        return subscription;
+    }
+
+    void unsubscribe(@NotNull final ChangeSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Whether a change concerns a watched subtree: it was made inside it, or
+     * it deleted an ancestor of it, which takes the subtree with it.
+     */
+    boolean covers(@NotNull final String subtree, @NotNull final NodeChange change) {
+        return isWithin(subtree, change.getPath()) || ends(subtree, change);
+    }
+
+    /**
+     * Whether a change deleted the root of a watched subtree or one of its
+     * ancestors.  Deleting them is also how moving them is published, so
+     * either way nothing will be published at the watched path for that node
+     * again.
+     */
+    boolean ends(@NotNull final String subtree, @NotNull final NodeChange change) {
+        return NodeChange.Type.NODE_DELETED == change.getType() && isWithin(change.getPath(), subtree);
+    }
+
+    private static boolean isWithin(@NotNull final String subtree, @NotNull final String path) {
+        if ("/".equals(subtree) || subtree.equals(path)) {
+            return true;
+        }
+        return path.startsWith(subtree) && path.length() > subtree.length() && '/' == path.charAt(subtree.length());
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives the changes in a watched subtree, in sequence order, on the node
+ * store's background executor.
+ */
+public interface ChangeListener {
+    void onChange(@NotNull final NodeChange change);
+
+    /**
+     * Called when the listener fell so far behind that changes were dropped
+     * from the feed before it saw them.  Delivery carries on from the oldest
+     * change still held, so a mirror should resynchronize from the tree.
+     *
+     * @param missedFrom the sequence number of the first dropped change
+     * @param resumeAt the sequence number delivery resumes at
+     */
+    default void onOverflow(long missedFrom, long resumeAt) {
+    }
+}
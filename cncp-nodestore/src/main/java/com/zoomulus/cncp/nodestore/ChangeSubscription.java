@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A listener's position in a node store's change feed.  Closing it stops delivery;
+ * {@link #getLastDelivered()} is the sequence number to resume from later.
+ *
+ * The subscription follows the path the node had when it was watched.  Once
+ * that node or one of its ancestors is deleted or moved away, the listener is
+ * given the NODE_DELETED change for it and the subscription closes itself,
+ * as later changes to the node would be published under another path or not
+ * at all.
+ */
+public class ChangeSubscription implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(ChangeSubscription.class);
+
+    private final ChangeFeed feed;
+    private final String path;
+    private final ChangeListener listener;
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastDelivered;
+    private volatile boolean closed;
+
+    ChangeSubscription(@NotNull final ChangeFeed feed,
+                       @NotNull final String path,
+                       long fromSequence,
+                       @NotNull final ChangeListener listener,
+                       @NotNull final Executor executor) {
+        this.feed = feed;
+        this.path = path;
+        this.listener = listener;
+        this.executor = executor;
+        lastDelivered = fromSequence;
+    }
+
+    @NotNull
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * The sequence number of the last change this subscription has passed
+     * over, whether or not it was inside the watched subtree.
+     */
+    public long getLastDelivered() {
+        return lastDelivered;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        feed.unsubscribe(this);
+    }
+
+    void schedule() {
+        if (! closed && hasDeliverable() && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            long next = lastDelivered + 1;
+            while (! closed && next <= feed.getLastSequence() && ! feed.isPending(next)) {
+                NodeChange change = feed.get(next);
+                if (null == change) {
+                    long resumeAt = feed.getOldestSequence();
+                    deliverOverflow(next, resumeAt);
+                    next = resumeAt;
+                    continue;
+                }
+                if (feed.covers(path, change)) {
+                    deliver(change);
+                }
+                lastDelivered = next++;
+                if (feed.ends(path, change)) {
+                    close();
+                }
+            }
+        }
+        finally {
+            scheduled.set(false);
+        }
+        // A change may have been published after the last check; one still
+        // being stored is picked up when its publisher calls schedule()
+        schedule();
+    }
+
+    private boolean hasDeliverable() {
+        long next = lastDelivered + 1;
+        return next <= feed.getLastSequence() && ! feed.isPending(next);
+    }
+
+    private void deliver(@NotNull final NodeChange change) {
+        try {
+            listener.onChange(change);
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Change listener for {} failed on {}", path, change, e);
+        }
+    }
+
+    private void deliverOverflow(long missedFrom, long resumeAt) {
+        try {
+            listener.onOverflow(missedFrom, resumeAt);
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Change listener for {} failed on overflow at {}", path, missedFrom, e);
+        }
+    }
+}
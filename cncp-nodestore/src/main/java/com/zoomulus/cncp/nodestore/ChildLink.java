@@ -0,0 +1,47 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * One version of the entry for a name in a parent's child map.  A link with
+ * no node is a tombstone, recording that the child was deleted at that
+ * version while older snapshots may still see it.
+ */
+final class ChildLink {
+    final long version;
+    @Nullable final InMemoryNode node;
+    @Nullable volatile ChildLink previous;
+
+    ChildLink(long version, @Nullable final InMemoryNode node, @Nullable final ChildLink previous) {
+        this.version = version;
+        this.node = node;
+        this.previous = previous;
+    }
+
+    @Nullable
+    ChildLink visibleAt(long readVersion) {
+        for (ChildLink link = this; null != link; link = link.previous) {
+            if (link.version <= readVersion) {
+                return link;
+            }
+        }
+        return null;
+    }
+}
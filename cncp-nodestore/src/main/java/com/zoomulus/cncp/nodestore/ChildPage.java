@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Optional;
+
+/**
+ * One page of a node's children in name order.  If more children follow, the
+ * continuation token is passed as {@code startAfter} to fetch the next page.
+ */
+public class ChildPage {
+    private final ImmutableList<Node> children;
+    private final String continuationToken;
+
+    ChildPage(@NotNull final ImmutableList<Node> children, @Nullable final String continuationToken) {
+        this.children = children;
+        this.continuationToken = continuationToken;
+    }
+
+    @NotNull
+    public ImmutableList<Node> getChildren() {
+        return children;
+    }
+
+    @NotNull
+    public Optional<String> getContinuationToken() {
+        return Optional.ofNullable(continuationToken);
+    }
+}
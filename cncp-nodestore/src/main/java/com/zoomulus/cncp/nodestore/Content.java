@@ -36,10 +36,18 @@ public class Content {
     }
 
     public Content(@NotNull final String name, long length, @NotNull final String mimeType) {
+        this(name, generateUniqueIdentifier(), length, mimeType);
+    }
+
+    public Content(@NotNull final String name, @NotNull final String identifier, long length) {
+        this(name, identifier, length, mimetypesFileTypeMap.getContentType(name));
+    }
+
+    public Content(@NotNull final String name, @NotNull final String identifier, long length, @NotNull final String mimeType) {
         commonName = name;
         contentLength = length;
         contentType = mimeType;
-        identifier = generateUniqueIdentifier();
+        this.identifier = identifier;
     }
 
     @NotNull
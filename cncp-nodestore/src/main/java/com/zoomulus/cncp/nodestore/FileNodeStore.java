@@ -0,0 +1,770 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.zoomulus.cncp.utils.EpochClock;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A node store that keeps the tree in memory and makes it durable in a
+ * directory on disk.
+ *
+ * Every mutation is applied in memory and appended to a write-ahead log before
+ * the call returns; concurrent mutations share fsyncs through group commit.
+ * Once enough records have accumulated a snapshot of the whole tree is written
+ * in the background and the log segments it covers are deleted, so a restart
+ * only has to load the latest snapshot and replay the log written since.
+ *
+ * Mutations made through a node that has since been deleted are not logged,
+ * since they can no longer be observed from the root.  Every logged record
+ * therefore names a node that replay can find, and one that cannot be
+ * found is reported as a damaged log.
+ *
+ * If the log cannot be written the store fails: every mutation whose record
+ * did not reach disk throws {@link UncheckedIOException}, and so does every
+ * later mutation, before it touches the tree.  Changes that were applied but
+ * not made durable stay visible in memory until the store is reopened, which
+ * recovers the tree as of the last durable record.
+ */
+public class FileNodeStore extends InMemoryNodeStore implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(FileNodeStore.class);
+
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000;
+
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x434e5053;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte OP_ADD_CHILD = 1;
+    private static final byte OP_DELETE_CHILD = 2;
+    private static final byte OP_SET_PROPERTY = 3;
+    private static final byte OP_DELETE_PROPERTY = 4;
+    private static final byte OP_SET_CONTENT = 5;
+    private static final byte OP_BATCH = 6;
+    private static final byte OP_MOVE = 7;
+    private static final byte OP_CLONE = 8;
+
+    private final Path rootPath;
+    private final long checkpointInterval;
+    private final Object mutationLock = new Object();
+    private final Object checkpointLock = new Object();
+    private final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "nodestore-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+    private WriteAheadLog log;
+    private volatile IOException failure;
+    private long segment;
+    private long recordsSinceCheckpoint;
+
+    @Inject
+    public FileNodeStore(@Named("nodestore.root.path") @NotNull final Path rootPath) throws IOException {
+        this(rootPath, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    public FileNodeStore(@NotNull final Path rootPath, long checkpointInterval) throws IOException {
+        this(rootPath, checkpointInterval, EpochClock.system());
+    }
+
+    public FileNodeStore(@NotNull final Path rootPath, long checkpointInterval, @NotNull final EpochClock clock) throws IOException {
+        super(DEFAULT_PATH_CACHE_SIZE, DEFAULT_CHANGE_FEED_CAPACITY, ForkJoinPool.commonPool(), clock);
+        this.rootPath = rootPath;
+        this.checkpointInterval = checkpointInterval;
+        Files.createDirectories(rootPath);
+        segment = recover();
+        log = new WriteAheadLog(getLogPath(segment));
+        syncDirectory();
+    }
+
+    @Override
+    @NotNull
+    public Node addChild(@NotNull final Node parent, @NotNull final String name) {
+        Node child;
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            boolean attached = isAttached(parent);
+            child = addChild(parent, name, now);
+            if (attached) {
+                commit = append(record(OP_ADD_CHILD, now, parent, out -> NodeStoreCodec.writeString(out, name)));
+            }
+        }
+        awaitDurable(commit);
+        return child;
+    }
+
+    @Override
+    public boolean deleteChild(@NotNull final Node parent, @NotNull final String name) {
+        boolean deleted;
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            boolean attached = isAttached(parent);
+            deleted = deleteChild(parent, name, now);
+            if (attached) {
+                commit = append(record(OP_DELETE_CHILD, now, parent, out -> NodeStoreCodec.writeString(out, name)));
+            }
+        }
+        awaitDurable(commit);
+        return deleted;
+    }
+
+    @Override
+    public void move(@NotNull final Node node, @NotNull final Node newParent, @NotNull final String newName) throws NodeNotFoundException {
+        PendingCommit commit;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            // Encoded first, while the record still names the node where it was
+            byte[] record = record(OP_MOVE, now, node, out -> {
+                NodeStoreCodec.writeString(out, newParent.getFullName());
+                NodeStoreCodec.writeString(out, newName);
+            });
+            move(node, newParent, newName, now);
+            commit = append(record);
+        }
+        awaitDurable(commit);
+    }
+
+    @Override
+    @NotNull
+    public Node cloneSubtree(@NotNull final Node source, @NotNull final Node newParent, @NotNull final String name)
+            throws NodeNotFoundException {
+        Node clone;
+        PendingCommit commit;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            clone = cloneSubtree(source, newParent, name, now);
+            commit = append(record(OP_CLONE, now, source, out -> {
+                NodeStoreCodec.writeString(out, newParent.getFullName());
+                NodeStoreCodec.writeString(out, name);
+            }));
+        }
+        awaitDurable(commit);
+        return clone;
+    }
+
+    @Override
+    public void setProperty(@NotNull final Node node, @NotNull final String key, @NotNull final Object value) {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            // Encode before applying so an unpersistable value leaves the tree untouched
+            byte[] record = record(OP_SET_PROPERTY, now, node, out -> {
+                NodeStoreCodec.writeString(out, key);
+                NodeStoreCodec.writeValue(out, value);
+            });
+            boolean attached = isAttached(node);
+            setProperty(node, key, value, now);
+            if (attached) {
+                commit = append(record);
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    @Override
+    public void setLongProperty(@NotNull final Node node, @NotNull final String key, long value) {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            byte[] record = record(OP_SET_PROPERTY, now, node, out -> {
+                NodeStoreCodec.writeString(out, key);
+                NodeStoreCodec.writeValue(out, value);
+            });
+            boolean attached = isAttached(node);
+            setLongProperty(node, key, value, now);
+            if (attached) {
+                commit = append(record);
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    @Override
+    public void setDoubleProperty(@NotNull final Node node, @NotNull final String key, double value) {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            byte[] record = record(OP_SET_PROPERTY, now, node, out -> {
+                NodeStoreCodec.writeString(out, key);
+                NodeStoreCodec.writeValue(out, value);
+            });
+            boolean attached = isAttached(node);
+            setDoubleProperty(node, key, value, now);
+            if (attached) {
+                commit = append(record);
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    @Override
+    public void setBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean value) {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            byte[] record = record(OP_SET_PROPERTY, now, node, out -> {
+                NodeStoreCodec.writeString(out, key);
+                NodeStoreCodec.writeValue(out, value);
+            });
+            boolean attached = isAttached(node);
+            setBooleanProperty(node, key, value, now);
+            if (attached) {
+                commit = append(record);
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    @Override
+    @Nullable
+    public Object deleteProperty(@NotNull final Node node, @NotNull final String key) {
+        Object deleted;
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            deleted = deleteProperty(node, key, now);
+            if (null != deleted && isAttached(node)) {
+                commit = append(record(OP_DELETE_PROPERTY, now, node, out -> NodeStoreCodec.writeString(out, key)));
+            }
+        }
+        awaitDurable(commit);
+        return deleted;
+    }
+
+    @Override
+    public void setContent(@NotNull final Node node, @NotNull final Content content) {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            boolean attached = isAttached(node);
+            setContent(node, content, now);
+            if (attached) {
+                commit = append(record(OP_SET_CONTENT, now, node, out -> NodeStoreCodec.writeContent(out, content)));
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    /**
+     * Applies a batch and logs it as a single record, so it is durable as a
+     * unit and costs one log write.
+     */
+    @Override
+    public void commit(@NotNull final NodeBatch batch) throws NodeNotFoundException {
+        PendingCommit commit = null;
+        synchronized (mutationLock) {
+            checkWritable();
+            long now = now();
+            byte[] record = record(OP_BATCH, now, batch.getBase(), out -> writeBatch(out, batch));
+            boolean attached = isAttached(batch.getBase());
+            commit(batch, now);
+            if (attached) {
+                commit = append(record);
+            }
+        }
+        awaitDurable(commit);
+    }
+
+    private static void writeBatch(@NotNull final DataOutput out, @NotNull final NodeBatch batch) throws IOException {
+        out.writeInt(batch.size());
+        for (NodeBatch.Operation operation : batch.getOperations()) {
+            out.writeByte(operation.type.ordinal());
+            out.writeInt(operation.path.size());
+            for (String segment : operation.path) {
+                NodeStoreCodec.writeString(out, segment);
+            }
+            out.writeBoolean(null != operation.key);
+            if (null != operation.key) {
+                NodeStoreCodec.writeString(out, operation.key);
+            }
+            if (NodeBatch.Type.SET_PROPERTY == operation.type) {
+                NodeStoreCodec.writeValue(out, operation.value);
+            }
+            else if (NodeBatch.Type.SET_CONTENT == operation.type) {
+                NodeStoreCodec.writeContent(out, (Content) operation.value);
+            }
+        }
+    }
+
+    @NotNull
+    private NodeBatch readBatch(@NotNull final DataInput in, @NotNull final Node base) throws IOException {
+        NodeBatch batch = batch(base);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            NodeBatch.Type type = NodeBatch.Type.values()[in.readByte()];
+            int segments = in.readInt();
+            List<String> path = Lists.newArrayListWithCapacity(segments);
+            for (int j = 0; j < segments; j++) {
+                path.add(NodeStoreCodec.readString(in));
+            }
+            String key = in.readBoolean() ? NodeStoreCodec.readString(in) : null;
+            Object value = null;
+            if (NodeBatch.Type.SET_PROPERTY == type) {
+                value = NodeStoreCodec.readValue(in);
+            }
+            else if (NodeBatch.Type.SET_CONTENT == type) {
+                value = NodeStoreCodec.readContent(in);
+            }
+            batch.add(type, path, key, value);
+        }
+        return batch;
+    }
+
+    /**
+     * Writes a snapshot of the current tree and discards the log segments it
+     * replaces.  Mutations are only blocked while the log is switched to a new
+     * segment; the tree is written from a point-in-time snapshot taken at the
+     * same moment.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            long nextSegment;
+            InMemoryNodeStoreSnapshot snapshot;
+            synchronized (mutationLock) {
+                if (null != failure) {
+                    throw new IOException(String.format("Node store at %s has failed", rootPath), failure);
+                }
+                nextSegment = segment + 1;
+                WriteAheadLog previous = log;
+                log = new WriteAheadLog(getLogPath(nextSegment));
+                syncDirectory();
+                try {
+                    previous.close();
+                }
+                catch (IOException e) {
+                    failure = e;
+                    throw e;
+                }
+                segment = nextSegment;
+                recordsSinceCheckpoint = 0;
+                snapshot = (InMemoryNodeStoreSnapshot) snapshot();
+            }
+
+            try (snapshot) {
+                writeSnapshot(snapshot, nextSegment);
+            }
+
+            try (Stream<Path> files = Files.list(rootPath)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    long fileSegment = getSegment(file);
+                    if (fileSegment >= 0 && fileSegment < nextSegment) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointExecutor.shutdown();
+        try {
+            checkpointExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mutationLock) {
+            log.close();
+        }
+    }
+
+    private interface RecordBody {
+        void write(@NotNull final DataOutput out) throws IOException;
+    }
+
+    @NotNull
+    private byte[] record(byte op, long now, @NotNull final Node node, @NotNull final RecordBody body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeLong(now);
+            NodeStoreCodec.writeString(out, node.getFullName());
+            body.write(out);
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException(String.format("Cannot encode change to node '%s'", node.getFullName()), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class PendingCommit {
+        private final WriteAheadLog log;
+        private final long sequence;
+
+        PendingCommit(@NotNull final WriteAheadLog log, long sequence) {
+            this.log = log;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Appends a record while holding the mutation lock, so the log order matches
+     * the order changes were applied in.  The caller waits for durability after
+     * releasing the lock, which lets concurrent writers share one fsync.
+     */
+    @NotNull
+    private PendingCommit append(@NotNull final byte[] record) {
+        WriteAheadLog current = log;
+        long sequence = current.append(record);
+        if (++recordsSinceCheckpoint >= checkpointInterval && checkpointPending.compareAndSet(false, true)) {
+            checkpointExecutor.execute(() -> {
+                try {
+                    checkpoint();
+                }
+                catch (IOException e) {
+                    LOG.error("Unable to checkpoint node store at {}", rootPath, e);
+                }
+                finally {
+                    checkpointPending.set(false);
+                }
+            });
+        }
+        return new PendingCommit(current, sequence);
+    }
+
+    private void checkWritable() {
+        if (null != failure) {
+            throw new UncheckedIOException(String.format("Node store at %s failed to write its log", rootPath), failure);
+        }
+    }
+
+    private void awaitDurable(@Nullable final PendingCommit commit) {
+        if (null == commit) {
+            return;
+        }
+        try {
+            commit.log.sync(commit.sequence);
+        }
+        catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException(String.format("Unable to write node store log %s", commit.log.getPath()), e);
+        }
+    }
+
+    private long recover() throws IOException {
+        long firstSegment = readSnapshot();
+        // Clones replayed from the log count what they share as they are copied
+        recountSharedContent();
+        List<Long> segments = Lists.newArrayList();
+        try (Stream<Path> files = Files.list(rootPath)) {
+            files.mapToLong(FileNodeStore::getSegment)
+                    .filter(s -> s >= firstSegment)
+                    .sorted()
+                    .forEach(segments::add);
+        }
+        long lastSegment = firstSegment;
+        long replayed = 0;
+        for (long s : segments) {
+            replayed += WriteAheadLog.replay(getLogPath(s), this::replayRecord);
+            lastSegment = s;
+        }
+        recordsSinceCheckpoint = replayed;
+        if (replayed > 0) {
+            LOG.info("Replayed {} node store log records from {}", replayed, rootPath);
+        }
+        return lastSegment;
+    }
+
+    private void replayRecord(@NotNull final ByteBuffer buffer) throws IOException {
+        DataInput in = new DataInputStream(new ByteBufferInputStream(buffer));
+        byte op = in.readByte();
+        long timestamp = in.readLong();
+        String path = NodeStoreCodec.readString(in);
+        Node node = resolve(path).orElse(null);
+        if (null == node) {
+            LOG.warn("Skipping log record for missing node {}", path);
+            return;
+        }
+        switch (op) {
+            case OP_ADD_CHILD:
+                addChild(node, NodeStoreCodec.readString(in), timestamp);
+                break;
+            case OP_DELETE_CHILD:
+                deleteChild(node, NodeStoreCodec.readString(in), timestamp);
+                break;
+            case OP_SET_PROPERTY:
+                String key = NodeStoreCodec.readString(in);
+                setProperty(node, key, NodeStoreCodec.readValue(in), timestamp);
+                break;
+            case OP_DELETE_PROPERTY:
+                deleteProperty(node, NodeStoreCodec.readString(in), timestamp);
+                break;
+            case OP_SET_CONTENT:
+                Content content = NodeStoreCodec.readContent(in);
+                if (null != content) {
+                    setContent(node, content, timestamp);
+                }
+                break;
+            case OP_BATCH:
+                try {
+                    commit(readBatch(in, node), timestamp);
+                }
+                catch (NodeNotFoundException e) {
+                    LOG.warn("Skipping log record for batch below {}", path, e);
+                }
+                break;
+            case OP_MOVE:
+            case OP_CLONE:
+                String parentPath = NodeStoreCodec.readString(in);
+                String newName = NodeStoreCodec.readString(in);
+                Node newParent = resolve(parentPath).orElse(null);
+                if (null == newParent) {
+                    LOG.warn("Skipping log record for {} of {} to missing node {}", OP_MOVE == op ? "move" : "clone", path, parentPath);
+                    break;
+                }
+                try {
+                    if (OP_MOVE == op) {
+                        move(node, newParent, newName, timestamp);
+                    }
+                    else {
+                        cloneSubtree(node, newParent, newName, timestamp);
+                    }
+                }
+                catch (NodeNotFoundException e) {
+                    LOG.warn("Skipping log record for {}", path, e);
+                }
+                break;
+            default:
+                throw new IOException(String.format("Unknown node store log operation %d", op));
+        }
+    }
+
+    private void writeSnapshot(@NotNull final InMemoryNodeStoreSnapshot snapshot, long firstSegment) throws IOException {
+        Path tmp = rootPath.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(firstSegment);
+
+            // Pre-order walk with an explicit stack so deep trees cannot overflow the call stack;
+            // clones are read through their sources so that checkpointing does not copy them out
+            Node root = snapshot.getRoot();
+            writeSnapshotNode(out, snapshot, root, "");
+            Deque<Iterator<Node>> stack = new ArrayDeque<>();
+            stack.push(snapshot.getSharedChildIterator(root));
+            while (! stack.isEmpty()) {
+                Iterator<Node> siblings = stack.peek();
+                if (! siblings.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                Node node = siblings.next();
+                writeSnapshotNode(out, snapshot, node, node.getSimpleName());
+                stack.push(snapshot.getSharedChildIterator(node));
+            }
+
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, rootPath.resolve(SNAPSHOT_FILE), ATOMIC_MOVE, REPLACE_EXISTING);
+        // The rename must be durable before the log segments it replaces are deleted
+        syncDirectory();
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(rootPath, READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static void writeSnapshotNode(@NotNull final DataOutput out,
+                                          @NotNull final InMemoryNodeStoreSnapshot snapshot,
+                                          @NotNull final Node node,
+                                          @NotNull final String name) throws IOException {
+        NodeStoreCodec.writeString(out, name);
+        NodeState state = snapshot.getState(node);
+        out.writeLong(state.created);
+        out.writeLong(state.lastModified);
+        PropertySet properties = state.properties;
+        out.writeInt(properties.size());
+        for (int i = 0; i < properties.size(); i++) {
+            NodeStoreCodec.writeString(out, properties.keyAt(i));
+            NodeStoreCodec.writeValue(out, properties.valueAt(i));
+        }
+        NodeStoreCodec.writeContent(out, state.content);
+        out.writeInt(Iterators.size(snapshot.getSharedChildIterator(node)));
+    }
+
+    /**
+     * Loads the snapshot, if any, into the in-memory tree.
+     *
+     * @return the first log segment not covered by the snapshot
+     */
+    private long readSnapshot() throws IOException {
+        Path snapshot = rootPath.resolve(SNAPSHOT_FILE);
+        if (! Files.exists(snapshot)) {
+            return 0;
+        }
+        try (InputStream is = Files.newInputStream(snapshot)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(is, 1 << 16), new CRC32C());
+            DataInputStream in = new DataInputStream(checked);
+            if (SNAPSHOT_MAGIC != in.readInt() || SNAPSHOT_VERSION != in.readInt()) {
+                throw new IOException(String.format("Unrecognized node store snapshot %s", snapshot));
+            }
+            long firstSegment = in.readLong();
+
+            Deque<Node> nodes = new ArrayDeque<>();
+            Deque<Integer> remaining = new ArrayDeque<>();
+            NodeStoreCodec.readString(in);
+            restoreSnapshotNode(in, getRoot(), nodes, remaining);
+            while (! nodes.isEmpty()) {
+                int count = remaining.pop();
+                if (0 == count) {
+                    nodes.pop();
+                    continue;
+                }
+                remaining.push(count - 1);
+                Node child = restoreChild(nodes.peek(), NodeStoreCodec.readString(in));
+                restoreSnapshotNode(in, child, nodes, remaining);
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (expected != in.readInt()) {
+                throw new IOException(String.format("Node store snapshot %s is corrupt", snapshot));
+            }
+            return firstSegment;
+        }
+    }
+
+    private void restoreSnapshotNode(@NotNull final DataInput in,
+                                     @NotNull final Node node,
+                                     @NotNull final Deque<Node> nodes,
+                                     @NotNull final Deque<Integer> remaining) throws IOException {
+        long created = in.readLong();
+        long lastModified = in.readLong();
+        int propertyCount = in.readInt();
+        Map<String, Object> properties = Maps.newHashMapWithExpectedSize(propertyCount);
+        for (int i = 0; i < propertyCount; i++) {
+            String key = NodeStoreCodec.readString(in);
+            properties.put(key, NodeStoreCodec.readValue(in));
+        }
+        Content content = NodeStoreCodec.readContent(in);
+        restoreNode(node, created, lastModified, properties, content);
+        nodes.push(node);
+        remaining.push(in.readInt());
+    }
+
+    @NotNull
+    private Path getLogPath(long segment) {
+        return rootPath.resolve(String.format("%s%020d%s", LOG_PREFIX, segment, LOG_SUFFIX));
+    }
+
+    private static long getSegment(@NotNull final Path file) {
+        String name = file.getFileName().toString();
+        if (! name.startsWith(LOG_PREFIX) || ! name.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(@NotNull final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NotNull final byte[] b, int off, int len) {
+            if (! buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.Sets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The record for a node in an {@link InMemoryNodeStore}: its place in the tree,
+ * its child links and the chain of its {@link NodeState} versions.
+ *
+ * The child map is only allocated once a node first has children, so a bare
+ * leaf costs few objects.  A count of live children is kept alongside it so
+ * that sizing a directory does not mean walking it.  Children are kept in a
+ * concurrent skip list, so writers under one parent do not corrupt each
+ * other, writers under different parents never contend, and iteration is
+ * weakly consistent rather than failing fast.
+ *
+ * A node does not store its full path, so moving it rewrites nothing below
+ * it.  The path is built from the parent's on first use and cached along
+ * with the placement and the parent's cached path it was built from, so a
+ * move only forces the moved subtree's paths to be rebuilt; elsewhere a move
+ * or delete just means checking those references up the parent chain once.
+ * The placement is only replaced by moves, which the store serializes.
+ *
+ * A node made by cloning a subtree starts out knowing only the node it was
+ * cloned from; its children are copied from that node's the first time they
+ * are needed.  The source keeps track of the clones still waiting on it.
+ */
+class InMemoryNode extends Node {
+    @NotNull volatile Placement placement;
+    @Nullable volatile CachedPath cachedPath;
+    @Nullable volatile ConcurrentNavigableMap<String, ChildLink> children;
+    @NotNull volatile NodeState state;
+    volatile int childCount;
+    volatile boolean detached;
+    volatile boolean reclaimed;
+    @Nullable volatile ClonedFrom clonedFrom;
+    @Nullable volatile Set<InMemoryNode> clones;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<InMemoryNode, ConcurrentNavigableMap> CHILDREN =
+            AtomicReferenceFieldUpdater.newUpdater(InMemoryNode.class, ConcurrentNavigableMap.class, "children");
+    private static final AtomicReferenceFieldUpdater<InMemoryNode, NodeState> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(InMemoryNode.class, NodeState.class, "state");
+    private static final AtomicIntegerFieldUpdater<InMemoryNode> CHILD_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(InMemoryNode.class, "childCount");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<InMemoryNode, Set> CLONES =
+            AtomicReferenceFieldUpdater.newUpdater(InMemoryNode.class, Set.class, "clones");
+
+    /**
+     * The node a clone's children are still to be copied from, and the
+     * version the clone was taken at.
+     */
+    static final class ClonedFrom {
+        final InMemoryNode source;
+        final long version;
+
+        ClonedFrom(@NotNull final InMemoryNode source, long version) {
+            this.source = source;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A node's path, built on its parent's cached path and its placement.  It
+     * stays good as long as neither is replaced; {@code checkedAt} is the
+     * store's structure epoch at which the path was last known good and the
+     * node still in the tree.
+     */
+    static final class CachedPath {
+        final String path;
+        final Placement placement;
+        @Nullable final CachedPath parent;
+        volatile long checkedAt;
+
+        CachedPath(@NotNull final String path,
+                   @NotNull final Placement placement,
+                   @Nullable final CachedPath parent,
+                   long checkedAt) {
+            this.path = path;
+            this.placement = placement;
+            this.parent = parent;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    InMemoryNode(@NotNull final NodeStore nodeStore,
+                 @NotNull final Placement placement,
+                 @NotNull final NodeState state) {
+        super(nodeStore);
+        this.placement = placement;
+        this.state = state;
+    }
+
+    @Nullable
+    InMemoryNode parent() {
+        return placement.parent;
+    }
+
+    @NotNull
+    String name() {
+        return placement.name;
+    }
+
+    @NotNull
+    ConcurrentNavigableMap<String, ChildLink> getOrCreateChildren() {
+        ConcurrentNavigableMap<String, ChildLink> current = children;
+        if (null == current) {
+            CHILDREN.compareAndSet(this, null, new ConcurrentSkipListMap<String, ChildLink>());
+            current = children;
+        }
+        return current;
+    }
+
+    @NotNull
+    Set<InMemoryNode> getOrCreateClones() {
+        Set<InMemoryNode> current = clones;
+        if (null == current) {
+            CLONES.compareAndSet(this, null, Sets.newConcurrentHashSet());
+            current = clones;
+        }
+        return current;
+    }
+
+    /**
+     * Whether some clone still has to copy this node's children.
+     */
+    boolean isShared() {
+        Set<InMemoryNode> current = clones;
+        return null != current && ! current.isEmpty();
+    }
+
+    boolean compareAndSetState(@NotNull final NodeState expected, @NotNull final NodeState update) {
+        return STATE.compareAndSet(this, expected, update);
+    }
+
+    void addChildCount(int delta) {
+        CHILD_COUNT.addAndGet(this, delta);
+    }
+}
@@ -17,48 +17,205 @@
 
 package com.zoomulus.cncp.nodestore;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.zoomulus.cncp.utils.EpochClock;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import java.nio.file.Paths;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
-import java.util.SortedMap;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
+/**
+ * Keeps the node tree in memory.  Each node is an {@link InMemoryNode} record
+ * linked to its parent and children, so no per-node side tables are needed.
+ *
+ * Node state is multi-versioned so that {@link #snapshot()} is O(1) and never
+ * blocks on readers.  Writes are stamped with the current write version and
+ * replace a node's immutable {@link NodeState} with a compare-and-set; deletes
+ * leave a tombstone in the parent's child map while a snapshot may still see
+ * the child.  Taking a snapshot briefly excludes writers only to close the
+ * current write version, so every write is either wholly inside or wholly
+ * outside the snapshot.  Versions no open snapshot can see are unlinked as
+ * nodes are next written.
+ *
+ * Paths looked up with {@link #resolve(String)} are remembered in a bounded
+ * cache.  Rather than invalidating every descendant path when a node is
+ * deleted or moved, deleted nodes are flagged as detached and each node
+ * caches its own path, which is only checked up the parent chain once a
+ * delete or move has advanced the structure epoch since it was last checked.
+ * A cached hit is used only while the node still has the cached path it was
+ * found with, so with no deletes or moves in between a hit costs one lookup.
+ *
+ * Moving a node relinks it under its new parent and gives it a new
+ * {@link Placement}, so a move costs the same however large the subtree.
+ * Moves are serialized with each other so that two of them cannot together
+ * form a cycle.
+ *
+ * Property indexes are kept current by the mutators.  When a subtree is
+ * deleted its nodes are removed from the indexes with it; a lookup also
+ * drops any candidate that has since been detached or no longer holds the
+ * value.  Queries on keys without an index walk the whole tree.
+ *
+ * Every change to an attached node is published to a bounded change feed
+ * that {@link #watch} subscribes to, once anyone has watched or asked for
+ * {@link #getChangeSequence()}; before then there is no position anyone could
+ * resume from, so changes are not recorded.  Sequence numbers start afresh
+ * with each store instance; changes restored from persisted state are not
+ * published.
+ *
+ * Deleting a node only unlinks it, so a delete costs the same however large
+ * the subtree.  The subtree is queued and, once no open snapshot can still
+ * see it, a background pass walks it to drop its nodes from the path cache
+ * and the indexes, clear their child maps and states so that stale
+ * {@link Node} references do not pin it, and hand their content to the
+ * content releaser so the blobs behind it can be freed.  The pass does not
+ * wait for writers that reached the subtree before it was deleted; instead
+ * it flags each node before clearing it, and a writer that finds its node
+ * flagged once its change is made undoes any index entry it added and queues
+ * the node to be cleared again.
+ *
+ * Cloning a subtree is O(1): the clone shares the source's properties and
+ * content, and each cloned node copies its children from its source only
+ * when they are first read or written.  Until then the source must look as
+ * it did when the clone was taken, so before any node is changed the clones
+ * waiting on it or on its ancestors copy the children they need.  Walking a
+ * whole clone, e.g. for an unindexed query, copies all of it; a checkpoint
+ * instead reads what is still shared through the source.  Content shared by
+ * more than one node is counted, and {@link #releaseContent} only reports it
+ * free once the last node using it lets go.
+ */
 public class InMemoryNodeStore implements NodeStore {
-    private final Node root;
-    private final Map<Node, SortedMap<String, Node>> children = Maps.newConcurrentMap();
-    private final Map<Node, Node> parents = Maps.newConcurrentMap();
-    private final Map<Node, OffsetDateTime> created = Maps.newConcurrentMap();
-    private final Map<Node, OffsetDateTime> lastModified = Maps.newConcurrentMap();
-    private final Map<Node, Map<String, Object>> properties = Maps.newConcurrentMap();
-    private final Map<Node, Content> content = Maps.newConcurrentMap();
+    private static Logger LOG = LoggerFactory.getLogger(InMemoryNodeStore.class);
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NO_SNAPSHOTS = Long.MAX_VALUE;
+
+    public static final int DEFAULT_PATH_CACHE_SIZE = 100000;
+    public static final int DEFAULT_CHANGE_FEED_CAPACITY = 1 << 16;
+
+    private final InMemoryNode root;
+    private final Cache<String, CachedNode> pathCache;
+    private final Map<String, PropertyIndex> indexes = Maps.newConcurrentMap();
+    private final ReentrantReadWriteLock versionLock = new ReentrantReadWriteLock();
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+    private volatile long writeVersion = 1;
+    private volatile long oldestSnapshot = NO_SNAPSHOTS;
+    private final AtomicLong structureEpoch = new AtomicLong();
+    private final Object moveLock = new Object();
+    private final Executor executor;
+    private final EpochClock clock;
+    private final ChangeFeed changeFeed;
+    private final Queue<Reclaim> reclaimQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean reclaiming = new AtomicBoolean();
+    @Nullable private volatile Consumer<Content> contentReleaser;
+    private final AtomicLong sharedNodes = new AtomicLong();
+    private final ConcurrentMap<String, Integer> sharedContent = Maps.newConcurrentMap();
+    private final Set<InMemoryNode> deferredReclaims = Sets.newConcurrentHashSet();
+
+    /**
+     * A deleted subtree waiting for the snapshots that can see it to close.
+     */
+    private static final class Reclaim {
+        final long version;
+        final InMemoryNode subtree;
+
+        Reclaim(long version, @NotNull final InMemoryNode subtree) {
+            this.version = version;
+            this.subtree = subtree;
+        }
+    }
+
+    /**
+     * A node found by path, with the cached path it had when it was found.
+     */
+    private static final class CachedNode {
+        final InMemoryNode node;
+        final InMemoryNode.CachedPath path;
+
+        CachedNode(@NotNull final InMemoryNode node, @NotNull final InMemoryNode.CachedPath path) {
+            this.node = node;
+            this.path = path;
+        }
+    }
 
     @Inject
     public InMemoryNodeStore() {
-        root = createNode("/");
+        this(DEFAULT_PATH_CACHE_SIZE);
     }
 
-    private Node createNode(@NotNull final String path) {
-        OffsetDateTime now = OffsetDateTime.now();
-        return createNode(path, now, now);
+    public InMemoryNodeStore(int pathCacheSize) {
+        this(pathCacheSize, DEFAULT_CHANGE_FEED_CAPACITY, ForkJoinPool.commonPool());
     }
 
-    private Node createNode(@NotNull final String path,
-                            @NotNull final OffsetDateTime created,
-                            @NotNull final OffsetDateTime lastModified) {
-        Node node = new Node(this, path);
-        children.put(node, new TreeMap<>());
-        this.created.put(node, created);
-        this.lastModified.put(node, lastModified);
-        properties.put(node, Maps.newConcurrentMap());
-        return node;
+    public InMemoryNodeStore(int pathCacheSize, int changeFeedCapacity, @NotNull final Executor executor) {
+        this(pathCacheSize, changeFeedCapacity, executor, EpochClock.system());
+    }
+
+    /**
+     * @param executor runs reclamation of deleted subtrees and delivery of changes
+     * @param clock stamps created and last modified times
+     */
+    public InMemoryNodeStore(int pathCacheSize,
+                             int changeFeedCapacity,
+                             @NotNull final Executor executor,
+                             @NotNull final EpochClock clock) {
+        this.executor = executor;
+        this.clock = clock;
+        changeFeed = new ChangeFeed(changeFeedCapacity, executor);
+        long now = now();
+        root = new InMemoryNode(this, new Placement(writeVersion, null, "", null), new NodeState(writeVersion, null, now, now, PropertySet.EMPTY, null));
+        pathCache = CacheBuilder.newBuilder().maximumSize(pathCacheSize).build();
+    }
+
+    @NotNull
+    static InMemoryNode record(@NotNull final Node node) {
+        return (InMemoryNode) node;
+    }
+
+    long now() {
+        return clock.epochNanos();
+    }
+
+    @NotNull
+    static OffsetDateTime toOffsetDateTime(long epochNanos) {
+        Instant instant = Instant.ofEpochSecond(Math.floorDiv(epochNanos, NANOS_PER_SECOND), Math.floorMod(epochNanos, NANOS_PER_SECOND));
+        return OffsetDateTime.ofInstant(instant, ZoneId.systemDefault());
     }
 
     @Override
@@ -70,87 +227,1387 @@ public class InMemoryNodeStore implements NodeStore {
     @Override
     @NotNull
     public Node getChild(@NotNull final Node parent, @NotNull final String name) throws NodeNotFoundException {
-        Node child = children.get(parent).get(name);
+        Node child = getLiveChild(record(parent), name);
         if (null == child) {
             throw new NodeNotFoundException(String.format("No such child node '%s' found at path '%s'", name, parent.getFullName()));
         }
         return child;
     }
 
+    @Override
+    @NotNull
+    public Optional<Node> resolve(@NotNull final String path) {
+        CachedNode cached = pathCache.getIfPresent(path);
+        if (null != cached) {
+            if (cached.path == attachedPath(cached.node)) {
+                return Optional.of(cached.node);
+            }
+            pathCache.invalidate(path);
+        }
+        InMemoryNode node = walk(root, path, Long.MAX_VALUE);
+        if (null == node) {
+            return Optional.empty();
+        }
+        InMemoryNode.CachedPath found = attachedPath(node);
+        if (null != found) {
+            pathCache.put(path, new CachedNode(node, found));
+        }
+        return Optional.of(node);
+    }
+
+    /**
+     * Walks from a node without going back to the root or the path cache,
+     * provided the node is still in the tree.
+     */
+    @Override
+    @NotNull
+    public Optional<Node> resolve(@NotNull final Node start, @NotNull final String relativePath) {
+        if (! isAttached(start)) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(walk(record(start), relativePath, Long.MAX_VALUE));
+    }
+
+    /**
+     * Follows a path from a starting node as of a given version.
+     */
+    @Nullable
+    InMemoryNode walk(@NotNull final InMemoryNode start, @NotNull final String path, long readVersion) {
+        InMemoryNode node = start;
+        int begin = 0;
+        while (begin < path.length()) {
+            int end = path.indexOf('/', begin);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > begin) {
+                String segment = path.substring(begin, end);
+                if ("..".equals(segment)) {
+                    InMemoryNode parent = parentAt(node, readVersion);
+                    node = null == parent ? node : parent;
+                }
+                else if (! ".".equals(segment)) {
+                    node = getChildAt(node, segment, readVersion);
+                    if (null == node) {
+                        return null;
+                    }
+                }
+            }
+            begin = end + 1;
+        }
+        return node;
+    }
+
     @Override
     @NotNull
     public Node addChild(@NotNull final Node parent, @NotNull final String name) {
-        OffsetDateTime now = OffsetDateTime.now();
-        Node childNode = createNode(Paths.get(parent.getFullName(), name).toString(), now, now);
-        children.get(parent).put(name, childNode);
-        parents.put(childNode, parent);
-        lastModified.put(parent, now);
-        return childNode;
+        return addChild(parent, name, now());
+    }
+
+    @NotNull
+    Node addChild(@NotNull final Node parent, @NotNull final String name, long now) {
+        checkName(name);
+        long version = beginWrite();
+        try {
+            InMemoryNode parentNode = record(parent);
+            pushDown(parentNode, true);
+            InMemoryNode childNode = new InMemoryNode(this, new Placement(version, parentNode, name, null),
+                    new NodeState(version, null, now, now, PropertySet.EMPTY, null));
+            detach(link(parentNode, name, childNode, version));
+            touch(parentNode, now, version);
+            publish(NodeChange.Type.NODE_ADDED, childNode, null, now);
+            return childNode;
+        }
+        finally {
+            endWrite();
+        }
     }
 
     @Override
     @NotNull
     public Iterator<Node> getChildIterator(@NotNull final Node parent) {
-        return children.get(parent).values().iterator();
+        ConcurrentNavigableMap<String, ChildLink> children = children(record(parent));
+        if (null == children) {
+            return Collections.emptyIterator();
+        }
+        Iterator<Map.Entry<String, ChildLink>> entries = children.entrySet().iterator();
+        return new AbstractIterator<Node>() {
+            @Override
+            protected Node computeNext() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, ChildLink> entry = entries.next();
+                    ChildLink link = entry.getValue();
+                    if (null != link.node) {
+                        return link.node;
+                    }
+                    if (link.version <= oldestSnapshot) {
+                        // Every open snapshot already sees this deletion
+                        children.remove(entry.getKey(), link);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public ChildPage listChildren(@NotNull final Node parent, @Nullable final String startAfter, int limit) {
+        return listChildrenAt(record(parent), startAfter, limit, Long.MAX_VALUE, node -> node);
+    }
+
+    @Override
+    public int getChildCount(@NotNull final Node parent) {
+        InMemoryNode record = record(parent);
+        materialize(record);
+        return record.childCount;
     }
 
     @Override
     public boolean deleteChild(@NotNull final Node parent, @NotNull final String name) {
-        Node child = children.get(parent).remove(name);
-        lastModified.put(parent, OffsetDateTime.now());
-        return null != child;
+        return deleteChild(parent, name, now());
+    }
+
+    boolean deleteChild(@NotNull final Node parent, @NotNull final String name, long now) {
+        long version = beginWrite();
+        try {
+            InMemoryNode parentNode = record(parent);
+            pushDown(parentNode, true);
+            InMemoryNode child = link(parentNode, name, null, version);
+            touch(parentNode, now, version);
+            detach(child);
+            if (null != child && changeFeed.isActive() && isAttached(parentNode)) {
+                changeFeed.publish(NodeChange.Type.NODE_DELETED, child.getFullName(), null, now);
+            }
+            return null != child;
+        }
+        finally {
+            endWrite();
+        }
+    }
+
+    @Override
+    public void move(@NotNull final Node node, @NotNull final Node newParent, @NotNull final String newName) throws NodeNotFoundException {
+        move(node, newParent, newName, now());
+    }
+
+    /**
+     * Unlinks a node from its parent and links it under the new parent in one
+     * write version, replacing any node already there.  Only the moved node is
+     * written; its descendants find their new paths through it.
+     */
+    void move(@NotNull final Node node, @NotNull final Node newParent, @NotNull final String newName, long now)
+            throws NodeNotFoundException {
+        checkName(newName);
+        InMemoryNode record = record(node);
+        InMemoryNode target = record(newParent);
+        if (record == root) {
+            throw new IllegalArgumentException("The root node cannot be moved");
+        }
+        synchronized (moveLock) {
+            for (InMemoryNode ancestor = target; null != ancestor; ancestor = ancestor.parent()) {
+                if (ancestor == record) {
+                    throw new IllegalArgumentException(String.format("Cannot move '%s' below itself to '%s'",
+                            record.getFullName(), target.getFullName()));
+                }
+            }
+            if (! isAttached(record)) {
+                throw new NodeNotFoundException(String.format("Node '%s' is no longer in the tree", record.getFullName()));
+            }
+            if (! isAttached(target)) {
+                throw new NodeNotFoundException(String.format("Node '%s' is no longer in the tree", target.getFullName()));
+            }
+            long version = beginWrite();
+            try {
+                Placement from = record.placement;
+                if (from.parent == target && from.name.equals(newName)) {
+                    return;
+                }
+                String fromPath = record.getFullName();
+                pushDown(from.parent, true);
+                pushDown(target, true);
+                if (! unlink(from.parent, from.name, record, version)) {
+                    throw new NodeNotFoundException(String.format("Node '%s' is no longer in the tree", fromPath));
+                }
+                InMemoryNode replaced = link(target, newName, record, version);
+                detach(replaced);
+                record.placement = new Placement(version, target, newName, retain(from, version));
+                structureEpoch.incrementAndGet();
+                touch(from.parent, now, version);
+                touch(target, now, version);
+                if (changeFeed.isActive()) {
+                    String toPath = record.getFullName();
+                    changeFeed.publish(NodeChange.Type.NODE_DELETED, fromPath, null, now);
+                    if (null != replaced) {
+                        changeFeed.publish(NodeChange.Type.NODE_DELETED, toPath, null, now);
+                    }
+                    changeFeed.publish(NodeChange.Type.NODE_ADDED, toPath, null, now);
+                }
+            }
+            finally {
+                endWrite();
+            }
+        }
+    }
+
+    @Override
+    @NotNull
+    public Node cloneSubtree(@NotNull final Node source, @NotNull final Node newParent, @NotNull final String name)
+            throws NodeNotFoundException {
+        return cloneSubtree(source, newParent, name, now());
+    }
+
+    /**
+     * Links a clone of a node under a new parent, replacing any node already
+     * there.  Writers are excluded while the clone is taken, as for a
+     * snapshot, so it sees every write wholly or not at all.
+     */
+    @NotNull
+    Node cloneSubtree(@NotNull final Node source, @NotNull final Node newParent, @NotNull final String name, long now)
+            throws NodeNotFoundException {
+        checkName(name);
+        InMemoryNode from = record(source);
+        InMemoryNode target = record(newParent);
+        versionLock.writeLock().lock();
+        try {
+            for (InMemoryNode ancestor = target; null != ancestor; ancestor = ancestor.parent()) {
+                if (ancestor == from) {
+                    throw new IllegalArgumentException(String.format("Cannot clone '%s' below itself to '%s'",
+                            from.getFullName(), target.getFullName()));
+                }
+            }
+            if (! isAttached(from)) {
+                throw new NodeNotFoundException(String.format("Node '%s' is no longer in the tree", from.getFullName()));
+            }
+            if (! isAttached(target)) {
+                throw new NodeNotFoundException(String.format("Node '%s' is no longer in the tree", target.getFullName()));
+            }
+            long version = writeVersion;
+            pushDown(target, true);
+            InMemoryNode clone = newClone(from, target, name, version);
+            detach(link(target, name, clone, version));
+            touch(target, now, version);
+            publish(NodeChange.Type.NODE_ADDED, clone, null, now);
+            return clone;
+        }
+        finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes a copy of a node that shares its state, and that will copy its
+     * children when they are first needed if it has any.
+     */
+    @NotNull
+    private InMemoryNode newClone(@NotNull final InMemoryNode source,
+                                  @NotNull final InMemoryNode parent,
+                                  @NotNull final String name,
+                                  long version) {
+        NodeState state = source.state;
+        InMemoryNode clone = new InMemoryNode(this, new Placement(version, parent, name, null),
+                new NodeState(version, null, state.created, state.lastModified, state.properties, state.content));
+        if (source.childCount > 0 || null != source.clonedFrom) {
+            clone.clonedFrom = new InMemoryNode.ClonedFrom(source, version);
+            source.getOrCreateClones().add(clone);
+            sharedNodes.incrementAndGet();
+        }
+        PropertySet properties = state.properties;
+        for (int i = 0; i < properties.size(); i++) {
+            PropertyIndex index = indexes.get(properties.keyAt(i));
+            if (null != index) {
+                index.add(properties.valueAt(i), clone);
+            }
+        }
+        if (null != state.content) {
+            sharedContent.merge(state.content.getIdentifier(), 1, Integer::sum);
+        }
+        return clone;
+    }
+
+    /**
+     * Copies a clone's children from its source if it has not done so yet.
+     * The copies are stamped with the version the clone was taken at, as that
+     * is what they show, so snapshots taken since see them too.
+     */
+    private void materialize(@NotNull final InMemoryNode node) {
+        if (null == node.clonedFrom) {
+            return;
+        }
+        synchronized (node) {
+            InMemoryNode.ClonedFrom from = node.clonedFrom;
+            if (null == from) {
+                return;
+            }
+            ConcurrentNavigableMap<String, ChildLink> sourceChildren = children(from.source);
+            if (null != sourceChildren) {
+                ConcurrentNavigableMap<String, ChildLink> copies = new ConcurrentSkipListMap<>();
+                for (Map.Entry<String, ChildLink> entry : sourceChildren.entrySet()) {
+                    // The source has not changed since the clone was taken, so its newest links are the ones to copy
+                    InMemoryNode child = entry.getValue().node;
+                    if (null != child) {
+                        copies.put(entry.getKey(), new ChildLink(from.version, newClone(child, node, entry.getKey(), from.version), null));
+                    }
+                }
+                node.childCount = copies.size();
+                node.children = copies;
+            }
+            node.clonedFrom = null;
+            unregister(from.source, node);
+        }
+    }
+
+    /**
+     * The child map of a node, copied from its source first if it is a clone.
+     */
+    @Nullable
+    private ConcurrentNavigableMap<String, ChildLink> children(@NotNull final InMemoryNode node) {
+        materialize(node);
+        return node.children;
+    }
+
+    @Nullable
+    private InMemoryNode getLiveChild(@NotNull final InMemoryNode parent, @NotNull final String name) {
+        ConcurrentNavigableMap<String, ChildLink> children = children(parent);
+        ChildLink link = null == children ? null : children.get(name);
+        return null == link ? null : link.node;
+    }
+
+    private void unregister(@NotNull final InMemoryNode source, @NotNull final InMemoryNode clone) {
+        Set<InMemoryNode> clones = source.clones;
+        if (null != clones && clones.remove(clone)) {
+            sharedNodes.decrementAndGet();
+            if (! source.isShared() && deferredReclaims.remove(source)) {
+                executor.execute(() -> reclaim(source));
+            }
+        }
+    }
+
+    /**
+     * Has every clone still waiting on a node or its ancestors copy the
+     * children on the way down to it, so that the node can be changed without
+     * the change showing in them.  Ancestors are visited from the root down,
+     * so clones made on the way are visited too.  Called by writers between
+     * {@link #beginWrite()} and {@link #endWrite()}; new clones are only
+     * taken while no write is in progress.
+     *
+     * @param includeNode whether the node's own children are to change, rather
+     *                    than only its state
+     */
+    private void pushDown(@NotNull final InMemoryNode node, boolean includeNode) {
+        if (0 == sharedNodes.get()) {
+            return;
+        }
+        Deque<InMemoryNode> path = new ArrayDeque<>();
+        for (InMemoryNode current = includeNode ? node : node.parent(); null != current; current = current.parent()) {
+            path.push(current);
+        }
+        for (InMemoryNode current : path) {
+            Set<InMemoryNode> clones = current.clones;
+            if (null != clones) {
+                for (InMemoryNode clone : clones) {
+                    materialize(clone);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies out every clone of some index candidates, so that the copies are
+     * indexed too.
+     */
+    private void pushDown(@NotNull final Iterator<InMemoryNode> candidates) {
+        for (InMemoryNode candidate : Lists.newArrayList(candidates)) {
+            pushDown(candidate, false);
+        }
+    }
+
+    /**
+     * Lets go of one node's use of some content and returns whether no other
+     * node still uses it.  With a content releaser set, reclamation does this
+     * for deleted nodes; otherwise whoever manages content should call it
+     * whenever a node's content is deleted or replaced.
+     */
+    @Override
+    public boolean releaseContent(@NotNull final Content content) {
+        String identifier = content.getIdentifier();
+        for (;;) {
+            Integer others = sharedContent.get(identifier);
+            if (null == others) {
+                return true;
+            }
+            boolean released = 1 == others
+                    ? sharedContent.remove(identifier, others)
+                    : sharedContent.replace(identifier, others, others - 1);
+            if (released) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Recounts the nodes sharing each content, for a tree rebuilt from
+     * persisted state.
+     */
+    void recountSharedContent() {
+        Map<String, Integer> counts = Maps.newHashMap();
+        for (Iterator<InMemoryNode> nodes = walkSubtree(root); nodes.hasNext(); ) {
+            Content content = nodes.next().state.content;
+            if (null != content) {
+                counts.merge(content.getIdentifier(), 1, Integer::sum);
+            }
+        }
+        sharedContent.clear();
+        counts.forEach((identifier, count) -> {
+            if (count > 1) {
+                sharedContent.put(identifier, count - 1);
+            }
+        });
+    }
+
+    @Override
+    @NotNull
+    public String getPath(@NotNull final Node node) {
+        return pathOf(record(node));
+    }
+
+    @Override
+    @NotNull
+    public String getName(@NotNull final Node node) {
+        return record(node).name();
+    }
+
+    /**
+     * A node's current path; cached while the node is in the tree, built
+     * afresh once it has been deleted.
+     */
+    @NotNull
+    private String pathOf(@NotNull final InMemoryNode node) {
+        InMemoryNode.CachedPath cached = attachedPath(node);
+        return null != cached ? cached.path : pathAt(node, Long.MAX_VALUE);
+    }
+
+    /**
+     * A node's cached path, or null if it is no longer in the tree.  Once a
+     * delete or move has happened the cached paths are checked up the parent
+     * chain, and only those below a node whose placement changed are rebuilt.
+     */
+    @Nullable
+    private InMemoryNode.CachedPath attachedPath(@NotNull final InMemoryNode node) {
+        // Read before any placement, so a path checked while a delete or move is under way is not trusted past it
+        long epoch = structureEpoch.get();
+        InMemoryNode.CachedPath cached = node.cachedPath;
+        if (null != cached && cached.checkedAt == epoch) {
+            return cached;
+        }
+        // Climb to the nearest node whose path is known good at this epoch
+        Deque<InMemoryNode> unchecked = new ArrayDeque<>();
+        Deque<Placement> placements = new ArrayDeque<>();
+        InMemoryNode current = node;
+        while (null != current && (null == (cached = current.cachedPath) || cached.checkedAt != epoch)) {
+            Placement placement = current.placement;
+            if (current.detached || (null == placement.parent && current != root)) {
+                return null;
+            }
+            unchecked.push(current);
+            placements.push(placement);
+            current = placement.parent;
+        }
+        InMemoryNode.CachedPath parentPath = null == current ? null : cached;
+        while (! unchecked.isEmpty()) {
+            InMemoryNode next = unchecked.pop();
+            Placement placement = placements.pop();
+            cached = next.cachedPath;
+            if (null == cached || cached.placement != placement || cached.parent != parentPath) {
+                String path = null == parentPath ? "/" : join(parentPath.path, placement.name);
+                cached = new InMemoryNode.CachedPath(path, placement, parentPath, epoch);
+                next.cachedPath = cached;
+            }
+            else {
+                cached.checkedAt = epoch;
+            }
+            parentPath = cached;
+        }
+        return parentPath;
+    }
+
+    /**
+     * A node's path as of a version, built without caching.
+     */
+    @NotNull
+    String pathAt(@NotNull final InMemoryNode node, long readVersion) {
+        Deque<String> names = new ArrayDeque<>();
+        for (Placement placement = placementAt(node, readVersion); null != placement.parent;
+             placement = placementAt(placement.parent, readVersion)) {
+            names.push(placement.name);
+        }
+        return "/" + String.join("/", names);
+    }
+
+    @NotNull
+    private static String join(@NotNull final String parentPath, @NotNull final String name) {
+        return "/".equals(parentPath) ? "/" + name : parentPath + "/" + name;
+    }
+
+    /**
+     * Where a node sat as of a version.  A node not yet created at that
+     * version is taken where it was first placed.
+     */
+    @NotNull
+    Placement placementAt(@NotNull final InMemoryNode node, long readVersion) {
+        Placement head = node.placement;
+        Placement visible = head.visibleAt(readVersion);
+        if (null != visible) {
+            return visible;
+        }
+        Placement first = head;
+        while (null != first.previous) {
+            first = first.previous;
+        }
+        return first;
+    }
+
+    @Nullable
+    InMemoryNode parentAt(@NotNull final InMemoryNode node, long readVersion) {
+        return placementAt(node, readVersion).parent;
+    }
+
+    /**
+     * Rejects a name no path could address, as paths are split on '/' and
+     * give '.' and '..' their usual meaning.
+     */
+    private static void checkName(@NotNull final String name) {
+        if (name.isEmpty() || ".".equals(name) || "..".equals(name) || name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException(String.format("Invalid node name '%s'", name));
+        }
+    }
+
+    /**
+     * Flags a node that was just unlinked at the current write version as
+     * detached and queues its subtree for reclamation.  Called by writers
+     * between {@link #beginWrite()} and {@link #endWrite()}, so the queue is
+     * ordered by version.
+     */
+    private void detach(@Nullable final InMemoryNode node) {
+        if (null != node) {
+            node.detached = true;
+            structureEpoch.incrementAndGet();
+            pathCache.invalidate(node.getFullName());
+            reclaimQueue.add(new Reclaim(writeVersion, node));
+            scheduleReclaim();
+        }
+    }
+
+    /**
+     * Queues a node again that a writer changed after the reclamation pass had
+     * already cleared it, so that what the write added is released too.
+     * Clearing a node twice is harmless.
+     */
+    private void reclaimLate(@NotNull final InMemoryNode node, long version) {
+        reclaimQueue.add(new Reclaim(version, node));
+        scheduleReclaim();
+    }
+
+    @Override
+    @NotNull
+    public ChangeSubscription watch(@NotNull final Node node, long fromSequence, @NotNull final ChangeListener listener) {
+        return changeFeed.subscribe(node.getFullName(), fromSequence, listener);
+    }
+
+    @Override
+    public long getChangeSequence() {
+        return changeFeed.activate();
+    }
+
+    /**
+     * Adds a change to the feed if it was made to a node still in the tree.
+     * Nothing is done, not even finding the node's path, while the feed is
+     * inactive.
+     */
+    private void publish(@NotNull final NodeChange.Type type, @NotNull final InMemoryNode node, @Nullable final String key, long now) {
+        if (changeFeed.isActive() && isAttached(node)) {
+            changeFeed.publish(type, node.getFullName(), key, now);
+        }
+    }
+
+    /**
+     * Sets the callback that is given the content of every node in a deleted
+     * subtree once the subtree is reclaimed and no clone still shares it,
+     * e.g. to delete the backing blob.
+     */
+    public void setContentReleaser(@Nullable final Consumer<Content> contentReleaser) {
+        this.contentReleaser = contentReleaser;
+    }
+
+    private boolean isReclaimable() {
+        Reclaim next = reclaimQueue.peek();
+        return null != next && next.version <= oldestSnapshot;
+    }
+
+    private void scheduleReclaim() {
+        if (isReclaimable() && reclaiming.compareAndSet(false, true)) {
+            executor.execute(this::reclaim);
+        }
+    }
+
+    private void reclaim() {
+        try {
+            while (isReclaimable()) {
+                reclaim(reclaimQueue.poll().subtree);
+            }
+        }
+        finally {
+            reclaiming.set(false);
+        }
+        // A snapshot may have closed after the last check
+        scheduleReclaim();
+    }
+
+    /**
+     * Clears a deleted subtree.  A node that some clone still has to copy
+     * children from is left as it is, with everything below it, until the
+     * last such clone lets go of it.
+     */
+    private void reclaim(@NotNull final InMemoryNode subtree) {
+        Consumer<Content> releaser = contentReleaser;
+        Deque<InMemoryNode> pending = new ArrayDeque<>();
+        pending.push(subtree);
+        while (! pending.isEmpty()) {
+            InMemoryNode node = pending.pop();
+            if (node.isShared()) {
+                deferredReclaims.add(node);
+                if (node.isShared() || ! deferredReclaims.remove(node)) {
+                    continue;
+                }
+            }
+            // Flagged before anything is cleared, so a writer that misses the flag is seen by the clearing
+            node.reclaimed = true;
+            synchronized (node) {
+                InMemoryNode.ClonedFrom from = node.clonedFrom;
+                if (null != from) {
+                    // A deleted clone will never need its children
+                    node.clonedFrom = null;
+                    unregister(from.source, node);
+                }
+            }
+            ConcurrentNavigableMap<String, ChildLink> children = node.children;
+            if (null != children) {
+                for (ChildLink link : children.values()) {
+                    if (null != link.node) {
+                        pending.push(link.node);
+                    }
+                }
+            }
+            node.children = null;
+            node.childCount = 0;
+            if (node != subtree) {
+                pathCache.invalidate(node.getFullName());
+            }
+            NodeState state = node.state;
+            while (! node.compareAndSetState(state,
+                    new NodeState(state.version, null, state.created, state.lastModified, PropertySet.EMPTY, null))) {
+                state = node.state;
+            }
+            PropertySet properties = state.properties;
+            for (int i = 0; i < properties.size(); i++) {
+                PropertyIndex index = indexes.get(properties.keyAt(i));
+                if (null != index) {
+                    index.remove(properties.valueAt(i), node);
+                }
+            }
+            if (null != state.content && null != releaser && releaseContent(state.content)) {
+                try {
+                    releaser.accept(state.content);
+                }
+                catch (RuntimeException e) {
+                    LOG.warn("Unable to release content {} of deleted node {}", state.content.getIdentifier(), node.getFullName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Iterates over a node and all of its live descendants, depth first,
+     * copying the children of clones as it goes.
+     */
+    @NotNull
+    Iterator<InMemoryNode> walkSubtree(@NotNull final InMemoryNode start) {
+        Deque<Iterator<Node>> stack = new ArrayDeque<>();
+        stack.push(Iterators.singletonIterator(start));
+        return new AbstractIterator<InMemoryNode>() {
+            @Override
+            protected InMemoryNode computeNext() {
+                while (! stack.isEmpty()) {
+                    Iterator<Node> siblings = stack.peek();
+                    if (! siblings.hasNext()) {
+                        stack.pop();
+                        continue;
+                    }
+                    InMemoryNode node = record(siblings.next());
+                    if (null != children(node)) {
+                        stack.push(getChildIterator(node));
+                    }
+                    return node;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    public void createIndex(@NotNull final String key, @NotNull final PropertyIndex.Type type) {
+        PropertyIndex index = new PropertyIndex(key, type);
+        PropertyIndex existing = indexes.putIfAbsent(key, index);
+        if (null != existing) {
+            if (existing.getType() != type) {
+                throw new IllegalStateException(String.format("Property '%s' already has a %s index", key, existing.getType()));
+            }
+            return;
+        }
+        // Registered first so concurrent writes are indexed while the tree is walked
+        for (Iterator<InMemoryNode> nodes = walkSubtree(root); nodes.hasNext(); ) {
+            InMemoryNode node = nodes.next();
+            Object value = node.state.properties.get(key);
+            if (null != value) {
+                index.add(value, node);
+            }
+        }
+    }
+
+    @Override
+    public boolean dropIndex(@NotNull final String key) {
+        return null != indexes.remove(key);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Node> findNodes(@NotNull final String key, @NotNull final Object value) {
+        PropertyIndex index = indexes.get(key);
+        Predicate<InMemoryNode> matches = node -> PropertyIndex.matches(node.state.properties.get(key), value);
+        if (null == index) {
+            return Iterators.<Node>unmodifiableIterator(Iterators.filter(walkSubtree(root), matches::test));
+        }
+        if (sharedNodes.get() > 0) {
+            pushDown(index.get(value));
+        }
+        return verified(index, index.get(value), value, matches);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Node> findNodes(@NotNull final String key, @Nullable final Object from, @Nullable final Object to) {
+        PropertyIndex index = indexes.get(key);
+        Predicate<InMemoryNode> matches = node -> PropertyIndex.inRange(node.state.properties.get(key), from, to);
+        if (null == index || PropertyIndex.Type.SORTED != index.getType()) {
+            return Iterators.<Node>unmodifiableIterator(Iterators.filter(walkSubtree(root), matches::test));
+        }
+        if (sharedNodes.get() > 0) {
+            pushDown(index.range(from, to));
+        }
+        return verified(index, index.range(from, to), null, matches);
+    }
+
+    /**
+     * Filters index candidates down to attached nodes that currently match,
+     * removing candidates that were deleted or changed since being indexed.
+     */
+    @NotNull
+    private Iterator<Node> verified(@NotNull final PropertyIndex index,
+                                    @NotNull final Iterator<InMemoryNode> candidates,
+                                    @Nullable final Object indexedValue,
+                                    @NotNull final Predicate<InMemoryNode> matches) {
+        return new AbstractIterator<Node>() {
+            @Override
+            protected Node computeNext() {
+                while (candidates.hasNext()) {
+                    InMemoryNode node = candidates.next();
+                    boolean attached = isAttached(node);
+                    boolean match = matches.test(node);
+                    if (attached && match) {
+                        return node;
+                    }
+                    if (null != indexedValue) {
+                        // An equality candidate that fails either check is a stale entry
+                        index.remove(indexedValue, node);
+                    }
+                }
+                return endOfData();
+            }
+        };
     }
 
     @Override
     public OffsetDateTime getCreated(@NotNull final Node node) {
-        return created.get(node);
+        return toOffsetDateTime(record(node).state.created);
     }
 
     @Override
     public OffsetDateTime getLastModified(@NotNull final Node node) {
-        return lastModified.get(node);
+        return toOffsetDateTime(record(node).state.lastModified);
     }
 
     @Override
     @NotNull
     public ImmutableMap<String, Object> getProperties(@NotNull final Node node) {
-        return ImmutableMap.copyOf(properties.get(node));
+        return record(node).state.properties.asMap();
     }
 
     @Override
     public void setProperty(@NotNull final Node node, @NotNull final String key, @NotNull final Object value) {
-        properties.get(node).put(key, value);
-        lastModified.put(node, OffsetDateTime.now());
+        setProperty(node, key, value, now());
+    }
+
+    void setProperty(@NotNull final Node node, @NotNull final String key, @NotNull final Object value, long now) {
+        updateProperty(record(node), key, properties -> properties.with(key, value), now);
+    }
+
+    @Override
+    public void setLongProperty(@NotNull final Node node, @NotNull final String key, long value) {
+        setLongProperty(node, key, value, now());
+    }
+
+    void setLongProperty(@NotNull final Node node, @NotNull final String key, long value, long now) {
+        updateProperty(record(node), key, properties -> properties.withLong(key, value), now);
+    }
+
+    @Override
+    public void setDoubleProperty(@NotNull final Node node, @NotNull final String key, double value) {
+        setDoubleProperty(node, key, value, now());
+    }
+
+    void setDoubleProperty(@NotNull final Node node, @NotNull final String key, double value, long now) {
+        updateProperty(record(node), key, properties -> properties.withDouble(key, value), now);
+    }
+
+    @Override
+    public void setBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean value) {
+        setBooleanProperty(node, key, value, now());
+    }
+
+    void setBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean value, long now) {
+        updateProperty(record(node), key, properties -> properties.withBoolean(key, value), now);
+    }
+
+    @Override
+    public long getLongProperty(@NotNull final Node node, @NotNull final String key, long defaultValue) {
+        return record(node).state.properties.getLong(key, defaultValue);
+    }
+
+    @Override
+    public double getDoubleProperty(@NotNull final Node node, @NotNull final String key, double defaultValue) {
+        return record(node).state.properties.getDouble(key, defaultValue);
+    }
+
+    @Override
+    public boolean getBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean defaultValue) {
+        return record(node).state.properties.getBoolean(key, defaultValue);
+    }
+
+    private void updateProperty(@NotNull final InMemoryNode record,
+                                @NotNull final String key,
+                                @NotNull final UnaryOperator<PropertySet> change,
+                                long now) {
+        long version = beginWrite();
+        try {
+            pushDown(record, false);
+            for (;;) {
+                NodeState head = record.state;
+                PropertySet properties = change.apply(head.properties);
+                NodeState next = new NodeState(version, retain(head, version), head.created, now, properties, head.content);
+                if (record.compareAndSetState(head, next)) {
+                    PropertyIndex index = indexes.get(key);
+                    if (null != index) {
+                        Object previous = head.properties.get(key);
+                        if (null != previous) {
+                            index.remove(previous, record);
+                        }
+                        index.add(properties.get(key), record);
+                    }
+                    if (record.reclaimed) {
+                        // Written after the deleted node was cleared, which may have missed the entry
+                        if (null != index) {
+                            index.remove(properties.get(key), record);
+                        }
+                        reclaimLate(record, version);
+                    }
+                    publish(NodeChange.Type.PROPERTY_SET, record, key, now);
+                    return;
+                }
+            }
+        }
+        finally {
+            endWrite();
+        }
     }
 
     @Override
     @Nullable
     public Object deleteProperty(@NotNull final Node node, @NotNull final String key) {
-        Object deleted = properties.get(node).remove(key);
-        if (null != deleted) {
-            lastModified.put(node, OffsetDateTime.now());
+        return deleteProperty(node, key, now());
+    }
+
+    @Nullable
+    Object deleteProperty(@NotNull final Node node, @NotNull final String key, long now) {
+        long version = beginWrite();
+        try {
+            InMemoryNode record = record(node);
+            pushDown(record, false);
+            for (;;) {
+                NodeState head = record.state;
+                Object deleted = head.properties.get(key);
+                if (null == deleted) {
+                    return null;
+                }
+                NodeState next = new NodeState(version, retain(head, version), head.created, now,
+                        head.properties.without(key), head.content);
+                if (record.compareAndSetState(head, next)) {
+                    PropertyIndex index = indexes.get(key);
+                    if (null != index) {
+                        index.remove(deleted, record);
+                    }
+                    publish(NodeChange.Type.PROPERTY_DELETED, record, key, now);
+                    return deleted;
+                }
+            }
+        }
+        finally {
+            endWrite();
         }
-        return deleted;
     }
 
     @Override
     @NotNull
     public Optional<Node> getParent(@NotNull final Node node) {
-        if (node.equals(root)) {
-            return Optional.empty();
-        }
-        return Optional.ofNullable(parents.get(node));
+        return Optional.ofNullable(record(node).parent());
     }
 
     @Override
     @NotNull
     public Optional<Content> getContent(@NotNull final Node node) {
-        return Optional.ofNullable(content.get(node));
+        return Optional.ofNullable(record(node).state.content);
     }
 
     @Override
     public void setContent(@NotNull final Node node, @NotNull final Content content) {
-        this.content.put(node, content);
-        lastModified.put(node, OffsetDateTime.now());
+        setContent(node, content, now());
+    }
+
+    void setContent(@NotNull final Node node, @NotNull final Content content, long now) {
+        long version = beginWrite();
+        try {
+            InMemoryNode record = record(node);
+            pushDown(record, false);
+            for (;;) {
+                NodeState head = record.state;
+                NodeState next = new NodeState(version, retain(head, version), head.created, now, head.properties, content);
+                if (record.compareAndSetState(head, next)) {
+                    if (record.reclaimed) {
+                        reclaimLate(record, version);
+                    }
+                    publish(NodeChange.Type.CONTENT_SET, record, null, now);
+                    return;
+                }
+            }
+        }
+        finally {
+            endWrite();
+        }
+    }
+
+    @Override
+    public void commit(@NotNull final NodeBatch batch) throws NodeNotFoundException {
+        commit(batch, now());
+    }
+
+    void commit(@NotNull final NodeBatch batch, long now) throws NodeNotFoundException {
+        InMemoryNode base = record(batch.getBase());
+        // Held exclusively so no other writer can delete a target between the check and the apply
+        versionLock.writeLock().lock();
+        try {
+            // Check every target first so a bad batch changes nothing
+            Map<String, Boolean> overlay = Maps.newHashMap();
+            for (NodeBatch.Operation operation : batch.getOperations()) {
+                if (! exists(base, operation.path, overlay)) {
+                    throw new NodeNotFoundException(String.format("No node found at path '%s' below '%s'",
+                            String.join("/", operation.path), base.getFullName()));
+                }
+                String key = (operation.path.isEmpty() ? "" : "/" + String.join("/", operation.path)) + "/" + operation.key;
+                if (NodeBatch.Type.ADD_CHILD == operation.type) {
+                    overlay.put(key, true);
+                }
+                else if (NodeBatch.Type.DELETE_CHILD == operation.type) {
+                    overlay.put(key, false);
+                }
+            }
+
+            for (NodeBatch.Operation operation : batch.getOperations()) {
+                InMemoryNode target = base;
+                for (String segment : operation.path) {
+                    target = getLiveChild(target, segment);
+                }
+                switch (operation.type) {
+                    case ADD_CHILD:
+                        addChild(target, operation.key, now);
+                        break;
+                    case DELETE_CHILD:
+                        deleteChild(target, operation.key, now);
+                        break;
+                    case SET_PROPERTY:
+                        setProperty(target, operation.key, operation.value, now);
+                        break;
+                    case DELETE_PROPERTY:
+                        deleteProperty(target, operation.key, now);
+                        break;
+                    case SET_CONTENT:
+                        setContent(target, (Content) operation.value, now);
+                        break;
+                }
+            }
+        }
+        finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Whether a node exists at a path below a base node, taking into account the
+     * children added (true) and deleted (false) so far in a batch.  A node added
+     * in the batch has no children in the store, only in the overlay.
+     */
+    private boolean exists(@NotNull final InMemoryNode base,
+                           @NotNull final List<String> path,
+                           @NotNull final Map<String, Boolean> overlay) {
+        InMemoryNode node = base;
+        StringBuilder prefix = new StringBuilder();
+        for (String segment : path) {
+            prefix.append('/').append(segment);
+            Boolean added = overlay.get(prefix.toString());
+            if (null != added) {
+                if (! added) {
+                    return false;
+                }
+                node = null;
+            }
+            else if (null == node || null == (node = getLiveChild(node, segment))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    @NotNull
+    public NodeStoreSnapshot snapshot() {
+        versionLock.writeLock().lock();
+        try {
+            long version = writeVersion;
+            writeVersion = version + 1;
+            return openSnapshot(version);
+        }
+        finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    @NotNull
+    NodeStoreSnapshot openSnapshot(long version) {
+        synchronized (openSnapshots) {
+            openSnapshots.merge(version, 1, Integer::sum);
+            oldestSnapshot = openSnapshots.firstKey();
+        }
+        return new InMemoryNodeStoreSnapshot(this, root, version);
+    }
+
+    void closeSnapshot(long version) {
+        synchronized (openSnapshots) {
+            openSnapshots.computeIfPresent(version, (v, count) -> count > 1 ? count - 1 : null);
+            oldestSnapshot = openSnapshots.isEmpty() ? NO_SNAPSHOTS : openSnapshots.firstKey();
+        }
+        scheduleReclaim();
+    }
+
+    @Nullable
+    InMemoryNode getChildAt(@NotNull final InMemoryNode parent, @NotNull final String name, long readVersion) {
+        ConcurrentNavigableMap<String, ChildLink> children = children(parent);
+        ChildLink head = null == children ? null : children.get(name);
+        ChildLink link = null == head ? null : head.visibleAt(readVersion);
+        return null == link ? null : link.node;
+    }
+
+    /**
+     * Reads one page of the children visible at a version, seeking straight to
+     * the first name after {@code startAfter} in the sorted child map.
+     */
+    @NotNull
+    ChildPage listChildrenAt(@NotNull final InMemoryNode parent,
+                             @Nullable final String startAfter,
+                             int limit,
+                             long readVersion,
+                             @NotNull final Function<InMemoryNode, Node> wrap) {
+        if (limit < 1) {
+            throw new IllegalArgumentException(String.format("Invalid page size %d", limit));
+        }
+        ConcurrentNavigableMap<String, ChildLink> children = children(parent);
+        if (null == children) {
+            return new ChildPage(ImmutableList.of(), null);
+        }
+        NavigableMap<String, ChildLink> tail = null == startAfter ? children : children.tailMap(startAfter, false);
+        ImmutableList.Builder<Node> page = ImmutableList.builder();
+        String last = null;
+        int count = 0;
+        for (Map.Entry<String, ChildLink> entry : tail.entrySet()) {
+            ChildLink link = entry.getValue().visibleAt(readVersion);
+            if (null == link || null == link.node) {
+                continue;
+            }
+            if (count == limit) {
+                return new ChildPage(page.build(), last);
+            }
+            page.add(wrap.apply(link.node));
+            last = entry.getKey();
+            count++;
+        }
+        return new ChildPage(page.build(), null);
+    }
+
+    @NotNull
+    Iterator<InMemoryNode> getChildrenAt(@NotNull final InMemoryNode parent, long readVersion) {
+        return linksAt(children(parent), readVersion);
+    }
+
+    /**
+     * The children visible to a snapshot, as {@link #getChildrenAt} but
+     * without copying out a clone's children: a clone still waiting on its
+     * source reads the source's children instead.  Those look as they did when
+     * the clone was taken, as any write below the source has the clone copy
+     * its children first, and later writes are newer than the snapshot.  The
+     * nodes given back may therefore be the source's.
+     */
+    @NotNull
+    Iterator<InMemoryNode> getSharedChildrenAt(@NotNull final InMemoryNode parent, long readVersion) {
+        InMemoryNode node = parent;
+        for (InMemoryNode.ClonedFrom from = node.clonedFrom; null != from; from = node.clonedFrom) {
+            if (readVersion < from.version) {
+                return Collections.emptyIterator();
+            }
+            node = from.source;
+        }
+        return linksAt(node.children, readVersion);
+    }
+
+    @NotNull
+    private static Iterator<InMemoryNode> linksAt(@Nullable final ConcurrentNavigableMap<String, ChildLink> children,
+                                                  long readVersion) {
+        if (null == children) {
+            return Collections.emptyIterator();
+        }
+        Iterator<ChildLink> links = children.values().iterator();
+        return new AbstractIterator<InMemoryNode>() {
+            @Override
+            protected InMemoryNode computeNext() {
+                while (links.hasNext()) {
+                    ChildLink link = links.next().visibleAt(readVersion);
+                    if (null != link && null != link.node) {
+                        return link.node;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Starts a write and returns the version to stamp it with.  Writers share
+     * the version lock, so a snapshot cannot be taken part way through a write.
+     */
+    long beginWrite() {
+        versionLock.readLock().lock();
+        return writeVersion;
+    }
+
+    void endWrite() {
+        versionLock.readLock().unlock();
+    }
+
+    /**
+     * The version chain a new state written at {@code version} should link to.
+     * A state already written at the same version is simply replaced, and with
+     * no snapshots open no history is kept at all; otherwise only the versions
+     * down to the one the oldest snapshot sees are kept.
+     */
+    @Nullable
+    private NodeState retain(@NotNull final NodeState head, long version) {
+        NodeState base = head.version == version ? head.previous : head;
+        long oldest = oldestSnapshot;
+        if (null == base || NO_SNAPSHOTS == oldest) {
+            return null;
+        }
+        NodeState oldestVisible = base.visibleAt(oldest);
+        if (null != oldestVisible) {
+            oldestVisible.previous = null;
+        }
+        return base;
+    }
+
+    @Nullable
+    private ChildLink retain(@NotNull final ChildLink head, long version) {
+        ChildLink base = head.version == version ? head.previous : head;
+        long oldest = oldestSnapshot;
+        if (null == base || NO_SNAPSHOTS == oldest) {
+            return null;
+        }
+        ChildLink oldestVisible = base.visibleAt(oldest);
+        if (null != oldestVisible) {
+            oldestVisible.previous = null;
+        }
+        return base;
+    }
+
+    @Nullable
+    private Placement retain(@NotNull final Placement head, long version) {
+        Placement base = head.version == version ? head.previous : head;
+        long oldest = oldestSnapshot;
+        if (null == base || NO_SNAPSHOTS == oldest) {
+            return null;
+        }
+        Placement oldestVisible = base.visibleAt(oldest);
+        if (null != oldestVisible) {
+            oldestVisible.previous = null;
+        }
+        return base;
+    }
+
+    /**
+     * Points a name in a parent's child map at a node, or at nothing to delete
+     * it, keeping the parent's live child count in step.
+     *
+     * @return the live child previously under that name, if any
+     */
+    @Nullable
+    private InMemoryNode link(@NotNull final InMemoryNode parent,
+                              @NotNull final String name,
+                              @Nullable final InMemoryNode node,
+                              long version) {
+        InMemoryNode replaced = swapLink(parent, name, node, version);
+        if (null != node && parent.reclaimed) {
+            // Linked below a deleted node that was already cleared, so the pass may have missed it
+            reclaimLate(node, version);
+        }
+        return replaced;
+    }
+
+    @Nullable
+    private InMemoryNode swapLink(@NotNull final InMemoryNode parent,
+                                  @NotNull final String name,
+                                  @Nullable final InMemoryNode node,
+                                  long version) {
+        materialize(parent);
+        ConcurrentNavigableMap<String, ChildLink> children = null == node ? parent.children : parent.getOrCreateChildren();
+        if (null == children) {
+            return null;
+        }
+        for (;;) {
+            ChildLink head = children.get(name);
+            if (null == head) {
+                if (null == node) {
+                    return null;
+                }
+                if (null == children.putIfAbsent(name, new ChildLink(version, node, null))) {
+                    parent.addChildCount(1);
+                    return null;
+                }
+                continue;
+            }
+            if (null == node && null == head.node) {
+                return null;
+            }
+            ChildLink previous = retain(head, version);
+            boolean linked = null == node && null == previous
+                    ? children.remove(name, head)
+                    : children.replace(name, head, new ChildLink(version, node, previous));
+            if (linked) {
+                if (null == head.node) {
+                    parent.addChildCount(1);
+                }
+                else if (null == node) {
+                    parent.addChildCount(-1);
+                }
+                return head.node;
+            }
+        }
+    }
+
+    /**
+     * Deletes a name from a parent's child map only if it still links to the
+     * given node.
+     *
+     * @return whether the node was unlinked
+     */
+    private boolean unlink(@NotNull final InMemoryNode parent,
+                           @NotNull final String name,
+                           @NotNull final InMemoryNode node,
+                           long version) {
+        ConcurrentNavigableMap<String, ChildLink> children = children(parent);
+        if (null == children) {
+            return false;
+        }
+        for (;;) {
+            ChildLink head = children.get(name);
+            if (null == head || head.node != node) {
+                return false;
+            }
+            ChildLink previous = retain(head, version);
+            boolean unlinked = null == previous
+                    ? children.remove(name, head)
+                    : children.replace(name, head, new ChildLink(version, null, previous));
+            if (unlinked) {
+                parent.addChildCount(-1);
+                return true;
+            }
+        }
+    }
+
+    private void touch(@NotNull final InMemoryNode node, long now, long version) {
+        for (;;) {
+            NodeState head = node.state;
+            if (head.version == version && head.lastModified == now) {
+                // Already touched by an earlier change in the same batch
+                return;
+            }
+            NodeState next = new NodeState(version, retain(head, version), head.created, now, head.properties, head.content);
+            if (node.compareAndSetState(head, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether a node is still reachable from the root, i.e. neither it nor any
+     * of its ancestors has been deleted.
+     */
+    boolean isAttached(@NotNull final Node node) {
+        return null != attachedPath(record(node));
+    }
+
+    /**
+     * Links a child under a parent without touching the parent's timestamps;
+     * used when rebuilding a tree from persisted state.
+     */
+    @NotNull
+    Node restoreChild(@NotNull final Node parent, @NotNull final String name) {
+        InMemoryNode parentNode = record(parent);
+        NodeState parentState = parentNode.state;
+        InMemoryNode childNode = new InMemoryNode(this, new Placement(writeVersion, parentNode, name, null),
+                new NodeState(writeVersion, null, parentState.created, parentState.created, PropertySet.EMPTY, null));
+        detach(link(parentNode, name, childNode, writeVersion));
+        return childNode;
+    }
+
+    void restoreNode(@NotNull final Node node,
+                     long created,
+                     long lastModified,
+                     @NotNull final Map<String, Object> properties,
+                     @Nullable final Content content) {
+        record(node).state = new NodeState(writeVersion, null, created, lastModified, PropertySet.of(properties), content);
     }
 }
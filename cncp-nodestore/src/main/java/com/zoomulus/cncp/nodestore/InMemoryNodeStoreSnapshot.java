@@ -0,0 +1,388 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.zoomulus.cncp.nodestore.InMemoryNodeStore.toOffsetDateTime;
+
+/**
+ * A point-in-time view of an {@link InMemoryNodeStore}, reading every node as
+ * of the version the snapshot was taken at.  The view shares all of its
+ * structure with the live store.
+ */
+class InMemoryNodeStoreSnapshot implements NodeStoreSnapshot {
+    private final InMemoryNodeStore nodeStore;
+    private final InMemoryNode root;
+    private final long version;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    InMemoryNodeStoreSnapshot(@NotNull final InMemoryNodeStore nodeStore, @NotNull final InMemoryNode root, long version) {
+        this.nodeStore = nodeStore;
+        this.root = root;
+        this.version = version;
+    }
+
+    private static class SnapshotNode extends Node {
+        private final InMemoryNodeStoreSnapshot snapshot;
+        private final InMemoryNode record;
+
+        SnapshotNode(@NotNull final InMemoryNodeStoreSnapshot snapshot, @NotNull final InMemoryNode record) {
+            super(snapshot);
+            this.snapshot = snapshot;
+            this.record = record;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof SnapshotNode)) {
+                return false;
+            }
+            SnapshotNode other = (SnapshotNode) o;
+            return snapshot == other.snapshot && record == other.record;
+        }
+
+        @Override
+        public int hashCode() {
+            return record.hashCode();
+        }
+    }
+
+    @NotNull
+    private Node wrap(@NotNull final InMemoryNode record) {
+        return new SnapshotNode(this, record);
+    }
+
+    @NotNull
+    private InMemoryNode unwrap(@NotNull final Node node) {
+        checkOpen();
+        if (! (node instanceof SnapshotNode) || ((SnapshotNode) node).snapshot != this) {
+            throw new IllegalArgumentException(String.format("Node '%s' does not belong to this snapshot", node.getFullName()));
+        }
+        return ((SnapshotNode) node).record;
+    }
+
+    /**
+     * The record behind a node of this snapshot, even once it is closed, so
+     * that its path can still be named.
+     */
+    @NotNull
+    private InMemoryNode recordOf(@NotNull final Node node) {
+        if (! (node instanceof SnapshotNode) || ((SnapshotNode) node).snapshot != this) {
+            throw new IllegalArgumentException("Node does not belong to this snapshot");
+        }
+        return ((SnapshotNode) node).record;
+    }
+
+    @NotNull
+    NodeState getState(@NotNull final Node node) {
+        NodeState state = unwrap(node).state.visibleAt(version);
+        if (null == state) {
+            throw new IllegalStateException(String.format("Node '%s' has no state visible in this snapshot", node.getFullName()));
+        }
+        return state;
+    }
+
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Node store snapshots are read-only");
+    }
+
+    @Override
+    @NotNull
+    public Node getRoot() {
+        checkOpen();
+        return wrap(root);
+    }
+
+    @Override
+    @NotNull
+    public Node addChild(@NotNull final Node parent, @NotNull final String name) {
+        throw readOnly();
+    }
+
+    @Override
+    @NotNull
+    public Node getChild(@NotNull final Node parent, @NotNull final String name) throws NodeNotFoundException {
+        InMemoryNode child = nodeStore.getChildAt(unwrap(parent), name, version);
+        if (null == child) {
+            throw new NodeNotFoundException(String.format("No such child node '%s' found at path '%s'", name, parent.getFullName()));
+        }
+        return wrap(child);
+    }
+
+    @Override
+    @NotNull
+    public Optional<Node> resolve(@NotNull final String path) {
+        checkOpen();
+        return Optional.ofNullable(nodeStore.walk(root, path, version)).map(this::wrap);
+    }
+
+    @Override
+    @NotNull
+    public Optional<Node> resolve(@NotNull final Node start, @NotNull final String relativePath) {
+        return Optional.ofNullable(nodeStore.walk(unwrap(start), relativePath, version)).map(this::wrap);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Node> getChildIterator(@NotNull final Node parent) {
+        return Iterators.transform(nodeStore.getChildrenAt(unwrap(parent), version), this::wrap);
+    }
+
+    /**
+     * The children visible to the snapshot, read through the source of any
+     * clone that has not copied its children yet rather than copying them.
+     * Only the names, state and children of the nodes given back are those of
+     * this tree; their paths and parents may be the source's.
+     */
+    @NotNull
+    Iterator<Node> getSharedChildIterator(@NotNull final Node parent) {
+        return Iterators.transform(nodeStore.getSharedChildrenAt(unwrap(parent), version), this::wrap);
+    }
+
+    @Override
+    @NotNull
+    public ChildPage listChildren(@NotNull final Node parent, @Nullable final String startAfter, int limit) {
+        return nodeStore.listChildrenAt(unwrap(parent), startAfter, limit, version, this::wrap);
+    }
+
+    /**
+     * Counted by walking the children visible to the snapshot, as the live
+     * count only reflects the current tree.
+     */
+    @Override
+    public int getChildCount(@NotNull final Node parent) {
+        return Iterators.size(getChildIterator(parent));
+    }
+
+    @Override
+    public boolean hasChildren(@NotNull final Node parent) {
+        return getChildIterator(parent).hasNext();
+    }
+
+    @Override
+    public boolean deleteChild(@NotNull final Node parent, @NotNull final String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public void move(@NotNull final Node node, @NotNull final Node newParent, @NotNull final String newName) {
+        throw readOnly();
+    }
+
+    @Override
+    @NotNull
+    public Node cloneSubtree(@NotNull final Node source, @NotNull final Node newParent, @NotNull final String name) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean releaseContent(@NotNull final Content content) {
+        throw readOnly();
+    }
+
+    /**
+     * The path the node had when the snapshot was taken, wherever it has
+     * been moved to since.
+     */
+    @Override
+    @NotNull
+    public String getPath(@NotNull final Node node) {
+        return nodeStore.pathAt(recordOf(node), version);
+    }
+
+    @Override
+    @NotNull
+    public String getName(@NotNull final Node node) {
+        return nodeStore.placementAt(recordOf(node), version).name;
+    }
+
+    @Override
+    @NotNull
+    public OffsetDateTime getCreated(@NotNull final Node node) {
+        return toOffsetDateTime(getState(node).created);
+    }
+
+    @Override
+    @NotNull
+    public OffsetDateTime getLastModified(@NotNull final Node node) {
+        return toOffsetDateTime(getState(node).lastModified);
+    }
+
+    @Override
+    @NotNull
+    public ImmutableMap<String, Object> getProperties(@NotNull final Node node) {
+        return getState(node).properties.asMap();
+    }
+
+    @Override
+    public long getLongProperty(@NotNull final Node node, @NotNull final String key, long defaultValue) {
+        return getState(node).properties.getLong(key, defaultValue);
+    }
+
+    @Override
+    public double getDoubleProperty(@NotNull final Node node, @NotNull final String key, double defaultValue) {
+        return getState(node).properties.getDouble(key, defaultValue);
+    }
+
+    @Override
+    public boolean getBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean defaultValue) {
+        return getState(node).properties.getBoolean(key, defaultValue);
+    }
+
+    @Override
+    public void setProperty(@NotNull final Node node, @NotNull final String key, @NotNull final Object value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setLongProperty(@NotNull final Node node, @NotNull final String key, long value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setDoubleProperty(@NotNull final Node node, @NotNull final String key, double value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean value) {
+        throw readOnly();
+    }
+
+    @Override
+    @Nullable
+    public Object deleteProperty(@NotNull final Node node, @NotNull final String key) {
+        throw readOnly();
+    }
+
+    @Override
+    @NotNull
+    public Optional<Node> getParent(@NotNull final Node node) {
+        InMemoryNode parent = nodeStore.parentAt(unwrap(node), version);
+        return null == parent ? Optional.empty() : Optional.of(wrap(parent));
+    }
+
+    @Override
+    @NotNull
+    public Optional<Content> getContent(@NotNull final Node node) {
+        return Optional.ofNullable(getState(node).content);
+    }
+
+    @Override
+    public void setContent(@NotNull final Node node, @NotNull final Content content) {
+        throw readOnly();
+    }
+
+    @Override
+    public void commit(@NotNull final NodeBatch batch) {
+        throw readOnly();
+    }
+
+    @Override
+    @NotNull
+    public ChangeSubscription watch(@NotNull final Node node, long fromSequence, @NotNull final ChangeListener listener) {
+        throw readOnly();
+    }
+
+    @Override
+    public long getChangeSequence() {
+        throw readOnly();
+    }
+
+    @Override
+    public void createIndex(@NotNull final String key, @NotNull final PropertyIndex.Type type) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean dropIndex(@NotNull final String key) {
+        throw readOnly();
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Node> findNodes(@NotNull final String key, @NotNull final Object value) {
+        return find(node -> PropertyIndex.matches(getState(node).properties.get(key), value));
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Node> findNodes(@NotNull final String key, @Nullable final Object from, @Nullable final Object to) {
+        return find(node -> PropertyIndex.inRange(getState(node).properties.get(key), from, to));
+    }
+
+    /**
+     * Snapshots have no indexes of their own, so queries walk the whole tree.
+     */
+    @NotNull
+    private Iterator<Node> find(@NotNull final Predicate<Node> predicate) {
+        Deque<Iterator<Node>> stack = new ArrayDeque<>();
+        stack.push(Iterators.singletonIterator(getRoot()));
+        return new AbstractIterator<Node>() {
+            @Override
+            protected Node computeNext() {
+                while (! stack.isEmpty()) {
+                    Iterator<Node> siblings = stack.peek();
+                    if (! siblings.hasNext()) {
+                        stack.pop();
+                        continue;
+                    }
+                    Node node = siblings.next();
+                    stack.push(getChildIterator(node));
+                    if (predicate.test(node)) {
+                        return node;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public NodeStoreSnapshot snapshot() {
+        checkOpen();
+        return nodeStore.openSnapshot(version);
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            nodeStore.closeSnapshot(version);
+        }
+    }
+}
@@ -21,28 +21,25 @@ import com.google.common.collect.ImmutableMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.util.Iterator;
 import java.util.Optional;
 
 public class Node {
     private final NodeStore nodeStore;
-    private final String path;
 
-    Node(@NotNull final NodeStore nodeStore, @NotNull final String path) {
+    Node(@NotNull final NodeStore nodeStore) {
         this.nodeStore = nodeStore;
-        this.path = path;
     }
 
     @NotNull
     public String getSimpleName() {
-        return Paths.get(path).getFileName().toString();
+        return nodeStore.getName(this);
     }
 
     @NotNull
     public String getFullName() {
-        return path;
+        return nodeStore.getPath(this);
     }
 
     public boolean isLeaf() {
@@ -50,7 +47,11 @@ public class Node {
     }
 
     public boolean hasChildren() {
-        return nodeStore.getChildIterator(this).hasNext();
+        return nodeStore.hasChildren(this);
+    }
+
+    public int getChildCount() {
+        return nodeStore.getChildCount(this);
     }
 
     @NotNull
@@ -63,15 +64,45 @@ public class Node {
         return nodeStore.getChild(this, name);
     }
 
+    /**
+     * Follows a path relative to this node; '..' steps up to the parent.
+     */
+    @NotNull
+    public Optional<Node> resolve(@NotNull final String relativePath) {
+        return nodeStore.resolve(this, relativePath);
+    }
+
     @NotNull
     public Iterator<Node> getChildIterator() {
         return nodeStore.getChildIterator(this);
     }
 
+    @NotNull
+    public ChildPage listChildren(@Nullable final String startAfter, int limit) {
+        return nodeStore.listChildren(this, startAfter, limit);
+    }
+
     public boolean deleteChild(@NotNull final String name) {
         return nodeStore.deleteChild(this, name);
     }
 
+    /**
+     * Moves this node, with everything below it, under another parent.
+     */
+    public void moveTo(@NotNull final Node newParent, @NotNull final String newName) throws NodeNotFoundException {
+        nodeStore.move(this, newParent, newName);
+    }
+
+    /**
+     * Makes a writable copy of this node and everything below it under
+     * another parent.  The copy shares data with this node until either
+     * is changed.
+     */
+    @NotNull
+    public Node cloneTo(@NotNull final Node newParent, @NotNull final String name) throws NodeNotFoundException {
+        return nodeStore.cloneSubtree(this, newParent, name);
+    }
+
     @NotNull
     public OffsetDateTime getCreated() {
         return nodeStore.getCreated(this);
@@ -92,6 +123,30 @@ public class Node {
         nodeStore.setProperty(this, key, value);
     }
 
+    public void setLongProperty(@NotNull final String key, long value) {
+        nodeStore.setLongProperty(this, key, value);
+    }
+
+    public void setDoubleProperty(@NotNull final String key, double value) {
+        nodeStore.setDoubleProperty(this, key, value);
+    }
+
+    public void setBooleanProperty(@NotNull final String key, boolean value) {
+        nodeStore.setBooleanProperty(this, key, value);
+    }
+
+    public long getLongProperty(@NotNull final String key, long defaultValue) {
+        return nodeStore.getLongProperty(this, key, defaultValue);
+    }
+
+    public double getDoubleProperty(@NotNull final String key, double defaultValue) {
+        return nodeStore.getDoubleProperty(this, key, defaultValue);
+    }
+
+    public boolean getBooleanProperty(@NotNull final String key, boolean defaultValue) {
+        return nodeStore.getBooleanProperty(this, key, defaultValue);
+    }
+
     @Nullable
     public Object deleteProperty(@NotNull final String key) {
         return nodeStore.deleteProperty(this, key);
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * A set of mutations applied to a node store as one unit.
+ *
+ * Operations address nodes by paths relative to the batch's base node, so a
+ * batch can create a node and then set its properties or add children beneath
+ * it.  On {@link #commit()} every target is checked before anything is changed,
+ * so a batch naming a missing node fails without applying any of it.  All the
+ * changes are then made with a single timestamp, and a snapshot sees either
+ * all of them or none.
+ */
+public class NodeBatch {
+    enum Type { ADD_CHILD, DELETE_CHILD, SET_PROPERTY, DELETE_PROPERTY, SET_CONTENT }
+
+    static class Operation {
+        @NotNull final Type type;
+        @NotNull final List<String> path;
+        @Nullable final String key;
+        @Nullable final Object value;
+
+        Operation(@NotNull final Type type, @NotNull final List<String> path, @Nullable final String key, @Nullable final Object value) {
+            this.type = type;
+            this.path = path;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final NodeStore nodeStore;
+    private final Node base;
+    private final List<Operation> operations = Lists.newArrayList();
+
+    NodeBatch(@NotNull final NodeStore nodeStore, @NotNull final Node base) {
+        this.nodeStore = nodeStore;
+        this.base = base;
+    }
+
+    @NotNull
+    public NodeBatch addChild(@NotNull final String path) {
+        List<String> segments = segments(path);
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Cannot add a child at path '%s'", path));
+        }
+        return add(Type.ADD_CHILD, segments.subList(0, segments.size() - 1), segments.get(segments.size() - 1), null);
+    }
+
+    @NotNull
+    public NodeBatch deleteChild(@NotNull final String path) {
+        List<String> segments = segments(path);
+        if (segments.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Cannot delete the node at path '%s'", path));
+        }
+        return add(Type.DELETE_CHILD, segments.subList(0, segments.size() - 1), segments.get(segments.size() - 1), null);
+    }
+
+    @NotNull
+    public NodeBatch setProperty(@NotNull final String path, @NotNull final String key, @NotNull final Object value) {
+        return add(Type.SET_PROPERTY, segments(path), key, value);
+    }
+
+    @NotNull
+    public NodeBatch deleteProperty(@NotNull final String path, @NotNull final String key) {
+        return add(Type.DELETE_PROPERTY, segments(path), key, null);
+    }
+
+    @NotNull
+    public NodeBatch setContent(@NotNull final String path, @NotNull final Content content) {
+        return add(Type.SET_CONTENT, segments(path), null, content);
+    }
+
+    public void commit() throws NodeNotFoundException {
+        nodeStore.commit(this);
+    }
+
+    @NotNull
+    public Node getBase() {
+        return base;
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    @NotNull
+    List<Operation> getOperations() {
+        return operations;
+    }
+
+    @NotNull
+    NodeBatch add(@NotNull final Type type, @NotNull final List<String> path, @Nullable final String key, @Nullable final Object value) {
+        operations.add(new Operation(type, ImmutableList.copyOf(path), key, value));
+        return this;
+    }
+
+    /**
+     * Splits a relative path into its segments, dropping empty and '.'
+     * segments and applying '..'.
+     */
+    @NotNull
+    static List<String> segments(@NotNull final String path) {
+        List<String> segments = Lists.newArrayList();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || ".".equals(segment)) {
+                continue;
+            }
+            if ("..".equals(segment)) {
+                if (segments.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("Path '%s' leaves the batch's base node", path));
+                }
+                segments.remove(segments.size() - 1);
+            }
+            else {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+}
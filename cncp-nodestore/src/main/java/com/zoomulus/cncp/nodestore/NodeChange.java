@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.OffsetDateTime;
+
+import static com.zoomulus.cncp.nodestore.InMemoryNodeStore.toOffsetDateTime;
+
+/**
+ * One entry in a node store's change feed.  An event names the node that
+ * changed and, for property changes, the key; it does not carry values, so
+ * consumers read the node's current state when they handle it.
+ */
+public class NodeChange {
+    public enum Type {
+        NODE_ADDED,
+        NODE_DELETED,
+        PROPERTY_SET,
+        PROPERTY_DELETED,
+        CONTENT_SET
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final String path;
+    private final String key;
+    private final long timestamp;
+
+    NodeChange(long sequence, @NotNull final Type type, @NotNull final String path, @Nullable final String key, long timestamp) {
+        this.sequence = sequence;
+        this.type = type;
+        this.path = path;
+        this.key = key;
+        this.timestamp = timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @NotNull
+    public Type getType() {
+        return type;
+    }
+
+    @NotNull
+    public String getPath() {
+        return path;
+    }
+
+    @Nullable
+    public String getKey() {
+        return key;
+    }
+
+    @NotNull
+    public OffsetDateTime getTimestamp() {
+        return toOffsetDateTime(timestamp);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s %s%s", sequence, type, path, null == key ? "" : " " + key);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * One immutable version of a node's timestamps, properties and content.
+ *
+ * Versions of a node are chained newest first.  A reader at version
+ * {@code v} sees the first state in the chain whose version is at most
+ * {@code v}; states no open snapshot can see are unlinked from the chain.
+ */
+final class NodeState {
+    final long version;
+    final long created;
+    final long lastModified;
+    @NotNull final PropertySet properties;
+    @Nullable final Content content;
+    @Nullable volatile NodeState previous;
+
+    NodeState(long version,
+              @Nullable final NodeState previous,
+              long created,
+              long lastModified,
+              @NotNull final PropertySet properties,
+              @Nullable final Content content) {
+        this.version = version;
+        this.previous = previous;
+        this.created = created;
+        this.lastModified = lastModified;
+        this.properties = properties;
+        this.content = content;
+    }
+
+    @Nullable
+    NodeState visibleAt(long readVersion) {
+        for (NodeState state = this; null != state; state = state.previous) {
+            if (state.version <= readVersion) {
+                return state;
+            }
+        }
+        return null;
+    }
+}
@@ -29,14 +29,46 @@ public interface NodeStore {
     @NotNull Node getRoot();
     @NotNull Node addChild(@NotNull final Node parent, @NotNull final String name);
     @NotNull Node getChild(@NotNull final Node parent, @NotNull final String name) throws NodeNotFoundException;
+    @NotNull Optional<Node> resolve(@NotNull final String path);
+    @NotNull Optional<Node> resolve(@NotNull final Node start, @NotNull final String relativePath);
     @NotNull Iterator<Node> getChildIterator(@NotNull final Node parent);
+    @NotNull ChildPage listChildren(@NotNull final Node parent, @Nullable final String startAfter, int limit);
+    int getChildCount(@NotNull final Node parent);
     boolean deleteChild(@NotNull final Node parent, @NotNull final String name);
+    void move(@NotNull final Node node, @NotNull final Node newParent, @NotNull final String newName) throws NodeNotFoundException;
+    @NotNull Node cloneSubtree(@NotNull final Node source, @NotNull final Node newParent, @NotNull final String name) throws NodeNotFoundException;
+    boolean releaseContent(@NotNull final Content content);
+    @NotNull String getPath(@NotNull final Node node);
+    @NotNull String getName(@NotNull final Node node);
     @NotNull OffsetDateTime getCreated(@NotNull final Node node);
     @NotNull OffsetDateTime getLastModified(@NotNull final Node node);
     @NotNull ImmutableMap<String, Object> getProperties(@NotNull final Node node);
     void setProperty(@NotNull final Node node, @NotNull final String key, @NotNull final Object value);
+    void setLongProperty(@NotNull final Node node, @NotNull final String key, long value);
+    void setDoubleProperty(@NotNull final Node node, @NotNull final String key, double value);
+    void setBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean value);
+    long getLongProperty(@NotNull final Node node, @NotNull final String key, long defaultValue);
+    double getDoubleProperty(@NotNull final Node node, @NotNull final String key, double defaultValue);
+    boolean getBooleanProperty(@NotNull final Node node, @NotNull final String key, boolean defaultValue);
     @Nullable Object deleteProperty(@NotNull final Node node, @NotNull final String key);
     @NotNull Optional<Node> getParent(@NotNull final Node node);
     @NotNull Optional<Content> getContent(@NotNull final Node node);
     void setContent(@NotNull final Node node, @NotNull final Content content);
+    @NotNull NodeStoreSnapshot snapshot();
+    void commit(@NotNull final NodeBatch batch) throws NodeNotFoundException;
+    void createIndex(@NotNull final String key, @NotNull final PropertyIndex.Type type);
+    boolean dropIndex(@NotNull final String key);
+    @NotNull Iterator<Node> findNodes(@NotNull final String key, @NotNull final Object value);
+    @NotNull Iterator<Node> findNodes(@NotNull final String key, @Nullable final Object from, @Nullable final Object to);
+    @NotNull ChangeSubscription watch(@NotNull final Node node, long fromSequence, @NotNull final ChangeListener listener);
+    long getChangeSequence();
+
+    default boolean hasChildren(@NotNull final Node parent) {
+        return getChildCount(parent) > 0;
+    }
+
+    @NotNull
+    default NodeBatch batch(@NotNull final Node base) {
+        return new NodeBatch(this, base);
+    }
 }
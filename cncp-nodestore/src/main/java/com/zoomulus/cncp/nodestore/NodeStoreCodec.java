@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary encoding of strings, property values and content shared by
+ * the write-ahead log and snapshot files of {@link FileNodeStore}.
+ */
+final class NodeStoreCodec {
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_SHORT = 7;
+    private static final byte TYPE_BYTE = 8;
+    private static final byte TYPE_CHARACTER = 9;
+    private static final byte TYPE_BYTES = 10;
+    private static final byte TYPE_SERIALIZED = 11;
+
+    private NodeStoreCodec() { }
+
+    static void writeString(@NotNull final DataOutput out, @NotNull final String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    static String readString(@NotNull final DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeValue(@NotNull final DataOutput out, @NotNull final Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Character) {
+            out.writeByte(TYPE_CHARACTER);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof byte[]) {
+            out.writeByte(TYPE_BYTES);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        }
+        else if (value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(TYPE_SERIALIZED);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+        else {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot persist property value of type %s", value.getClass().getName()));
+        }
+    }
+
+    @NotNull
+    static Object readValue(@NotNull final DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_STRING: return readString(in);
+            case TYPE_INTEGER: return in.readInt();
+            case TYPE_LONG: return in.readLong();
+            case TYPE_DOUBLE: return in.readDouble();
+            case TYPE_FLOAT: return in.readFloat();
+            case TYPE_BOOLEAN: return in.readBoolean();
+            case TYPE_SHORT: return in.readShort();
+            case TYPE_BYTE: return in.readByte();
+            case TYPE_CHARACTER: return in.readChar();
+            case TYPE_BYTES: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case TYPE_SERIALIZED: {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                }
+                catch (ClassNotFoundException e) {
+                    throw new IOException("Cannot restore persisted property value", e);
+                }
+            }
+            default:
+                throw new IOException(String.format("Unknown property value type %d", type));
+        }
+    }
+
+    static void writeContent(@NotNull final DataOutput out, @Nullable final Content content) throws IOException {
+        out.writeBoolean(null != content);
+        if (null != content) {
+            writeString(out, content.getCommonName());
+            writeString(out, content.getIdentifier());
+            out.writeLong(content.getContentLength());
+            writeString(out, content.getContentType());
+        }
+    }
+
+    @Nullable
+    static Content readContent(@NotNull final DataInput in) throws IOException {
+        if (! in.readBoolean()) {
+            return null;
+        }
+        String name = readString(in);
+        String identifier = readString(in);
+        long length = in.readLong();
+        return new Content(name, identifier, length, readString(in));
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import java.io.Closeable;
+
+/**
+ * A read-only, point-in-time view of a node store.  Mutators throw
+ * {@link UnsupportedOperationException}.
+ *
+ * An open snapshot keeps every node version it can see reachable, so
+ * snapshots should be closed as soon as they are no longer needed.
+ */
+public interface NodeStoreSnapshot extends NodeStore, Closeable {
+    @Override
+    void close();
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * One version of where a node sits in the tree: its parent and its name
+ * there.  A node only gets a new placement when it is moved, and older
+ * placements are kept while a snapshot may still see the node where it was.
+ */
+final class Placement {
+    final long version;
+    @Nullable final InMemoryNode parent;
+    @NotNull final String name;
+    @Nullable volatile Placement previous;
+
+    Placement(long version, @Nullable final InMemoryNode parent, @NotNull final String name, @Nullable final Placement previous) {
+        this.version = version;
+        this.parent = parent;
+        this.name = name;
+        this.previous = previous;
+    }
+
+    @Nullable
+    Placement visibleAt(long readVersion) {
+        for (Placement placement = this; null != placement; placement = placement.previous) {
+            if (placement.version <= readVersion) {
+                return placement;
+            }
+        }
+        return null;
+    }
+}
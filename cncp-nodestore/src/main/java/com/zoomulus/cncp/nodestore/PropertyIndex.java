@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A secondary index from the values of one property key to the nodes holding
+ * them.
+ *
+ * A {@link Type#HASH} index answers equality lookups; a {@link Type#SORTED}
+ * index also keeps its values ordered to answer range lookups.  Integral
+ * numbers are indexed as longs and floating point numbers as doubles, so
+ * {@code 5} and {@code 5L} match.  Values of different types sort by type
+ * name first.
+ *
+ * The index is maintained without locking, so under concurrent writes it may
+ * briefly hold stale entries; lookups return candidates which the node store
+ * checks against each node's current value.
+ */
+public class PropertyIndex {
+    public enum Type { HASH, SORTED }
+
+    static final Comparator<Object> VALUE_ORDER = (a, b) -> {
+        if (a.getClass() != b.getClass()) {
+            return a.getClass().getName().compareTo(b.getClass().getName());
+        }
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comparable = (Comparable<Object>) a;
+        return comparable.compareTo(b);
+    };
+
+    private final String key;
+    private final Type type;
+    private final ConcurrentMap<Object, Set<InMemoryNode>> entries = Maps.newConcurrentMap();
+    @Nullable private final NavigableSet<Object> sortedValues;
+
+    PropertyIndex(@NotNull final String key, @NotNull final Type type) {
+        this.key = key;
+        this.type = type;
+        sortedValues = Type.SORTED == type ? new ConcurrentSkipListSet<>(VALUE_ORDER) : null;
+    }
+
+    @NotNull
+    public String getKey() {
+        return key;
+    }
+
+    @NotNull
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The form a value is indexed and compared in.
+     */
+    @NotNull
+    static Object normalize(@NotNull final Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        }
+        return value;
+    }
+
+    boolean isIndexable(@NotNull final Object value) {
+        return Type.HASH == type || value instanceof Comparable;
+    }
+
+    void add(@NotNull final Object value, @NotNull final InMemoryNode node) {
+        if (! isIndexable(value)) {
+            return;
+        }
+        entries.compute(normalize(value), (v, nodes) -> {
+            if (null == nodes) {
+                nodes = ConcurrentHashMap.newKeySet();
+                if (null != sortedValues) {
+                    sortedValues.add(v);
+                }
+            }
+            nodes.add(node);
+            return nodes;
+        });
+    }
+
+    void remove(@NotNull final Object value, @NotNull final InMemoryNode node) {
+        if (! isIndexable(value)) {
+            return;
+        }
+        entries.computeIfPresent(normalize(value), (v, nodes) -> {
+            nodes.remove(node);
+            if (! nodes.isEmpty()) {
+                return nodes;
+            }
+            if (null != sortedValues) {
+                sortedValues.remove(v);
+            }
+            return null;
+        });
+    }
+
+    @NotNull
+    Iterator<InMemoryNode> get(@NotNull final Object value) {
+        Set<InMemoryNode> nodes = entries.get(normalize(value));
+        return null == nodes ? Collections.emptyIterator() : nodes.iterator();
+    }
+
+    /**
+     * Candidates with values from {@code from} inclusive to {@code to}
+     * exclusive; a null bound is open.
+     */
+    @NotNull
+    Iterator<InMemoryNode> range(@Nullable final Object from, @Nullable final Object to) {
+        if (null == sortedValues) {
+            throw new UnsupportedOperationException(String.format("Index on '%s' does not support range lookups", key));
+        }
+        NavigableSet<Object> values = sortedValues;
+        if (null != from) {
+            values = values.tailSet(normalize(from), true);
+        }
+        if (null != to) {
+            values = values.headSet(normalize(to), false);
+        }
+        return Iterators.concat(Iterators.transform(values.iterator(), v -> {
+            Set<InMemoryNode> nodes = entries.get(v);
+            return null == nodes ? Collections.emptyIterator() : nodes.iterator();
+        }));
+    }
+
+    static boolean matches(@Nullable final Object value, @NotNull final Object expected) {
+        return null != value && Objects.equals(normalize(value), normalize(expected));
+    }
+
+    static boolean inRange(@Nullable final Object value, @Nullable final Object from, @Nullable final Object to) {
+        if (! (value instanceof Comparable)) {
+            return false;
+        }
+        Object normalized = normalize(value);
+        return (null == from || VALUE_ORDER.compare(normalized, normalize(from)) >= 0)
+                && (null == to || VALUE_ORDER.compare(normalized, normalize(to)) < 0);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable set of node properties stored in flat arrays.
+ *
+ * Property keys and their value types make up a {@link Shape}, which is
+ * interned, so the many nodes carrying the same keys share one copy of them.
+ * Each set then holds only its values: long, int, double, float and boolean
+ * values as raw bits in a {@code long[]}, and everything else in an
+ * {@code Object[]}.  Typed accessors read primitives without boxing.
+ */
+final class PropertySet {
+    static final byte TYPE_OBJECT = 0;
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_DOUBLE = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+
+    private static final long[] NO_PRIMITIVES = new long[0];
+    private static final Object[] NO_OBJECTS = new Object[0];
+    private static final Interner<String> KEYS = Interners.newWeakInterner();
+    private static final Interner<Shape> SHAPES = Interners.newWeakInterner();
+
+    static final PropertySet EMPTY = new PropertySet(Shape.EMPTY, NO_PRIMITIVES, NO_OBJECTS);
+
+    /**
+     * The keys of a property set, in sorted order, and the type of each value.
+     */
+    static final class Shape {
+        static final Shape EMPTY = new Shape(new String[0], new byte[0]);
+
+        final String[] keys;
+        final byte[] types;
+        final int[] slots;
+        final int primitiveCount;
+        private final int hash;
+
+        Shape(@NotNull final String[] keys, @NotNull final byte[] types) {
+            this.keys = keys;
+            this.types = types;
+            slots = new int[keys.length];
+            int primitives = 0;
+            int objects = 0;
+            for (int i = 0; i < keys.length; i++) {
+                slots[i] = TYPE_OBJECT == types[i] ? objects++ : primitives++;
+            }
+            primitiveCount = primitives;
+            hash = 31 * Arrays.hashCode(keys) + Arrays.hashCode(types);
+        }
+
+        int objectCount() {
+            return keys.length - primitiveCount;
+        }
+
+        int indexOf(@NotNull final String key) {
+            return Arrays.binarySearch(keys, key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (! (o instanceof Shape)) {
+                return false;
+            }
+            Shape other = (Shape) o;
+            return hash == other.hash && Arrays.equals(keys, other.keys) && Arrays.equals(types, other.types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Shape shape;
+    private final long[] primitives;
+    private final Object[] objects;
+
+    private PropertySet(@NotNull final Shape shape, @NotNull final long[] primitives, @NotNull final Object[] objects) {
+        this.shape = shape;
+        this.primitives = primitives;
+        this.objects = objects;
+    }
+
+    @NotNull
+    Shape shape() {
+        return shape;
+    }
+
+    @NotNull
+    static PropertySet of(@NotNull final Map<String, Object> properties) {
+        PropertySet set = EMPTY;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            set = set.with(property.getKey(), property.getValue());
+        }
+        return set;
+    }
+
+    int size() {
+        return shape.keys.length;
+    }
+
+    boolean isEmpty() {
+        return 0 == shape.keys.length;
+    }
+
+    boolean containsKey(@NotNull final String key) {
+        return shape.indexOf(key) >= 0;
+    }
+
+    @NotNull
+    String keyAt(int index) {
+        return shape.keys[index];
+    }
+
+    @NotNull
+    Object valueAt(int index) {
+        int slot = shape.slots[index];
+        switch (shape.types[index]) {
+            case TYPE_LONG: return primitives[slot];
+            case TYPE_INT: return (int) primitives[slot];
+            case TYPE_DOUBLE: return Double.longBitsToDouble(primitives[slot]);
+            case TYPE_FLOAT: return (float) Double.longBitsToDouble(primitives[slot]);
+            case TYPE_BOOLEAN: return 0 != primitives[slot];
+            default: return objects[slot];
+        }
+    }
+
+    @Nullable
+    Object get(@NotNull final String key) {
+        int index = shape.indexOf(key);
+        return index < 0 ? null : valueAt(index);
+    }
+
+    long getLong(@NotNull final String key, long defaultValue) {
+        int index = shape.indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        switch (shape.types[index]) {
+            case TYPE_LONG:
+            case TYPE_INT:
+                return primitives[shape.slots[index]];
+            default: {
+                Object value = valueAt(index);
+                return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+            }
+        }
+    }
+
+    double getDouble(@NotNull final String key, double defaultValue) {
+        int index = shape.indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        switch (shape.types[index]) {
+            case TYPE_DOUBLE:
+            case TYPE_FLOAT:
+                return Double.longBitsToDouble(primitives[shape.slots[index]]);
+            case TYPE_LONG:
+            case TYPE_INT:
+                return primitives[shape.slots[index]];
+            default: {
+                Object value = valueAt(index);
+                return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+            }
+        }
+    }
+
+    boolean getBoolean(@NotNull final String key, boolean defaultValue) {
+        int index = shape.indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        if (TYPE_BOOLEAN == shape.types[index]) {
+            return 0 != primitives[shape.slots[index]];
+        }
+        Object value = valueAt(index);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    @NotNull
+    PropertySet with(@NotNull final String key, @NotNull final Object value) {
+        if (value instanceof Long) {
+            return with(key, TYPE_LONG, (Long) value, null);
+        }
+        if (value instanceof Integer) {
+            return with(key, TYPE_INT, (Integer) value, null);
+        }
+        if (value instanceof Double) {
+            return with(key, TYPE_DOUBLE, Double.doubleToRawLongBits((Double) value), null);
+        }
+        if (value instanceof Float) {
+            return with(key, TYPE_FLOAT, Double.doubleToRawLongBits((Float) value), null);
+        }
+        if (value instanceof Boolean) {
+            return with(key, TYPE_BOOLEAN, (Boolean) value ? 1 : 0, null);
+        }
+        return with(key, TYPE_OBJECT, 0, value);
+    }
+
+    @NotNull
+    PropertySet withLong(@NotNull final String key, long value) {
+        return with(key, TYPE_LONG, value, null);
+    }
+
+    @NotNull
+    PropertySet withDouble(@NotNull final String key, double value) {
+        return with(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+
+    @NotNull
+    PropertySet withBoolean(@NotNull final String key, boolean value) {
+        return with(key, TYPE_BOOLEAN, value ? 1 : 0, null);
+    }
+
+    @NotNull
+    private PropertySet with(@NotNull final String key, byte type, long bits, @Nullable final Object object) {
+        int index = shape.indexOf(key);
+        if (index >= 0 && shape.types[index] == type) {
+            // Same shape; only the value changes
+            if (TYPE_OBJECT == type) {
+                Object[] newObjects = objects.clone();
+                newObjects[shape.slots[index]] = object;
+                return new PropertySet(shape, primitives, newObjects);
+            }
+            long[] newPrimitives = primitives.clone();
+            newPrimitives[shape.slots[index]] = bits;
+            return new PropertySet(shape, newPrimitives, objects);
+        }
+
+        int size = shape.keys.length;
+        boolean replacing = index >= 0;
+        int position = replacing ? index : -(index + 1);
+        String[] keys = new String[replacing ? size : size + 1];
+        byte[] types = new byte[keys.length];
+        for (int i = 0, j = 0; i < size; i++, j++) {
+            if (i == position) {
+                if (replacing) {
+                    continue;
+                }
+                j++;
+            }
+            keys[j] = shape.keys[i];
+            types[j] = shape.types[i];
+        }
+        keys[position] = KEYS.intern(key);
+        types[position] = type;
+        Shape newShape = SHAPES.intern(new Shape(keys, types));
+
+        long[] newPrimitives = 0 == newShape.primitiveCount ? NO_PRIMITIVES : new long[newShape.primitiveCount];
+        Object[] newObjects = 0 == newShape.objectCount() ? NO_OBJECTS : new Object[newShape.objectCount()];
+        for (int i = 0; i < keys.length; i++) {
+            int slot = newShape.slots[i];
+            if (i == position) {
+                if (TYPE_OBJECT == type) {
+                    newObjects[slot] = object;
+                }
+                else {
+                    newPrimitives[slot] = bits;
+                }
+                continue;
+            }
+            int oldIndex = replacing || i < position ? i : i - 1;
+            if (TYPE_OBJECT == types[i]) {
+                newObjects[slot] = objects[shape.slots[oldIndex]];
+            }
+            else {
+                newPrimitives[slot] = primitives[shape.slots[oldIndex]];
+            }
+        }
+        return new PropertySet(newShape, newPrimitives, newObjects);
+    }
+
+    @NotNull
+    PropertySet without(@NotNull final String key) {
+        int index = shape.indexOf(key);
+        if (index < 0) {
+            return this;
+        }
+        if (1 == shape.keys.length) {
+            return EMPTY;
+        }
+        String[] keys = new String[shape.keys.length - 1];
+        byte[] types = new byte[keys.length];
+        for (int i = 0, j = 0; i < shape.keys.length; i++) {
+            if (i != index) {
+                keys[j] = shape.keys[i];
+                types[j++] = shape.types[i];
+            }
+        }
+        Shape newShape = SHAPES.intern(new Shape(keys, types));
+        long[] newPrimitives = 0 == newShape.primitiveCount ? NO_PRIMITIVES : new long[newShape.primitiveCount];
+        Object[] newObjects = 0 == newShape.objectCount() ? NO_OBJECTS : new Object[newShape.objectCount()];
+        for (int i = 0; i < keys.length; i++) {
+            int oldIndex = i < index ? i : i + 1;
+            if (TYPE_OBJECT == types[i]) {
+                newObjects[newShape.slots[i]] = objects[shape.slots[oldIndex]];
+            }
+            else {
+                newPrimitives[newShape.slots[i]] = primitives[shape.slots[oldIndex]];
+            }
+        }
+        return new PropertySet(newShape, newPrimitives, newObjects);
+    }
+
+    @NotNull
+    ImmutableMap<String, Object> asMap() {
+        if (isEmpty()) {
+            return ImmutableMap.of();
+        }
+        ImmutableMap.Builder<String, Object> map = ImmutableMap.builderWithExpectedSize(size());
+        for (int i = 0; i < size(); i++) {
+            map.put(shape.keys[i], valueAt(i));
+        }
+        return map.build();
+    }
+}
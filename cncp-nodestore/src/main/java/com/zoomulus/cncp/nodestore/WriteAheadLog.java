@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Append-only log of framed records with group commit.
+ *
+ * Each record is written as its length, a CRC32C of the payload and the
+ * payload itself.  Appends only buffer the record in memory; {@link #sync(long)}
+ * writes and forces everything buffered so far.  When several threads sync at
+ * once, one of them performs the write and fsync on behalf of all of them and
+ * the rest return as soon as they find their record already durable.
+ *
+ * If a write or fsync fails the log is failed for good: bytes of the failed
+ * batch may or may not have reached the file, so every later sync of a record
+ * that was not yet durable throws rather than report it written.
+ */
+class WriteAheadLog implements Closeable {
+    private static Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_SIZE = 8;
+
+    interface RecordHandler {
+        void handle(@NotNull final ByteBuffer record) throws IOException;
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private volatile long durable = 0;
+    private volatile IOException failure;
+
+    WriteAheadLog(@NotNull final Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, CREATE, WRITE, APPEND);
+    }
+
+    @NotNull
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Buffers a record and returns its sequence number in this log.  The record
+     * is not durable until {@link #sync(long)} has been called with that number.
+     */
+    long append(@NotNull final byte[] record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        synchronized (appendLock) {
+            try {
+                DataOutputStream out = new DataOutputStream(pending);
+                out.writeInt(record.length);
+                out.writeInt((int) crc.getValue());
+                out.write(record);
+            }
+            catch (IOException e) {
+                // ByteArrayOutputStream does not throw
+                throw new IllegalStateException(e);
+            }
+            return ++appended;
+        }
+    }
+
+    void sync(long sequence) throws IOException {
+        if (sequence <= durable) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (sequence <= durable) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (null != failure) {
+            throw new IOException(String.format("Log %s failed earlier", path), failure);
+        }
+        ByteArrayOutputStream batch;
+        long upTo;
+        synchronized (appendLock) {
+            batch = pending;
+            upTo = appended;
+            pending = new ByteArrayOutputStream();
+        }
+        if (batch.size() > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+        durable = upTo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            try {
+                flush();
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads every intact record in a log file, in order.  A torn or corrupt
+     * record at the tail, as left by a crash in the middle of a write, ends the
+     * replay and is truncated away so that later appends follow the last good
+     * record.
+     *
+     * @return the number of records replayed
+     */
+    static long replay(@NotNull final Path path, @NotNull final RecordHandler handler) throws IOException {
+        if (! Files.exists(path)) {
+            return 0;
+        }
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+            long size = channel.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int length = header.getInt();
+                int expectedCrc = header.getInt();
+                if (length < 0 || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(channel, record, position + HEADER_SIZE);
+                record.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                handler.handle(record);
+                position += HEADER_SIZE + length;
+                count++;
+            }
+            if (position < size) {
+                LOG.warn("Truncating {} bytes of incomplete log records from {}", size - position, path);
+                channel.truncate(position);
+                channel.force(false);
+            }
+        }
+        return count;
+    }
+
+    private static void readFully(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileNodeStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testChangesSurviveRestart() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Content content = new Content("file.txt", 42);
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.getRoot().addChild("a");
+            Node b = a.addChild("b");
+            a.addChild("gone");
+            a.deleteChild("gone");
+            b.setProperty("owner", "alice");
+            b.setProperty("size", 10L);
+            b.setProperty("tmp", true);
+            b.deleteProperty("tmp");
+            b.setContent(content);
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.getRoot().getChild("a");
+            Node b = a.getChild("b");
+            assertEquals(1, countChildren(a));
+            assertEquals("alice", b.getProperties().get("owner"));
+            assertEquals(10L, b.getProperties().get("size"));
+            assertFalse(b.getProperties().containsKey("tmp"));
+            assertEquals(content.getIdentifier(), b.getContent().get().getIdentifier());
+            assertEquals(42, b.getContent().get().getContentLength());
+        }
+    }
+
+    @Test
+    public void testLogFailureFailsStore() throws Exception {
+        FileNodeStore store = new FileNodeStore(folder.getRoot().toPath());
+        store.close();
+        try {
+            store.getRoot().addChild("a");
+            fail();
+        }
+        catch (UncheckedIOException e) { }
+        try {
+            store.getRoot().addChild("b");
+            fail();
+        }
+        catch (UncheckedIOException e) { }
+        assertFalse(store.resolve("/b").isPresent());
+    }
+
+    @Test
+    public void testBatchSurvivesRestart() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            store.getRoot().addChild("old");
+            store.batch(store.getRoot())
+                    .addChild("dir")
+                    .addChild("dir/a")
+                    .setProperty("dir/a", "owner", "bob")
+                    .setContent("dir/a", new Content("a.bin", 3))
+                    .deleteChild("old")
+                    .commit();
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.resolve("/dir/a").get();
+            assertEquals("bob", a.getProperties().get("owner"));
+            assertEquals(3, a.getContent().get().getContentLength());
+            assertFalse(store.resolve("/old").isPresent());
+        }
+    }
+
+    @Test
+    public void testMoveSurvivesRestart() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.getRoot().addChild("a");
+            a.addChild("b").setProperty("owner", "carol");
+            a.moveTo(store.getRoot().addChild("dir"), "renamed");
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            assertFalse(store.resolve("/a").isPresent());
+            assertEquals("carol", store.resolve("/dir/renamed/b").get().getProperties().get("owner"));
+        }
+    }
+
+    @Test
+    public void testCloneSurvivesRestart() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.getRoot().addChild("a");
+            a.addChild("b").setProperty("owner", "carol");
+            a.cloneTo(store.getRoot(), "copy").getChild("b").setProperty("owner", "dave");
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            assertEquals("carol", store.resolve("/a/b").get().getProperties().get("owner"));
+            assertEquals("dave", store.resolve("/copy/b").get().getProperties().get("owner"));
+        }
+    }
+
+    @Test
+    public void testCheckpointKeepsClonesShared() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node a = store.getRoot().addChild("a");
+            a.addChild("b").addChild("c").setProperty("owner", "carol");
+            Node copy = a.cloneTo(store.getRoot(), "copy");
+            Node copy2 = copy.cloneTo(store.getRoot(), "copy2");
+            store.checkpoint();
+            assertTrue(null != ((InMemoryNode) copy).clonedFrom);
+            assertTrue(null != ((InMemoryNode) copy2).clonedFrom);
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            assertEquals("carol", store.resolve("/copy/b/c").get().getProperties().get("owner"));
+            assertEquals("carol", store.resolve("/copy2/b/c").get().getProperties().get("owner"));
+            assertEquals(1, countChildren(store.getRoot().getChild("copy2")));
+        }
+    }
+
+    @Test
+    public void testTimestampsSurviveRestart() throws Exception {
+        Path root = folder.getRoot().toPath();
+        Node child;
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            child = store.getRoot().addChild("c1");
+            child.setProperty("key", "value");
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node restored = store.getRoot().getChild("c1");
+            assertEquals(child.getCreated().toInstant(), restored.getCreated().toInstant());
+            assertEquals(child.getLastModified().toInstant(), restored.getLastModified().toInstant());
+        }
+    }
+
+    @Test
+    public void testCheckpointReplacesLog() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node dir = store.getRoot().addChild("dir");
+            for (int i = 0; i < 100; i++) {
+                dir.addChild("n" + i).setProperty("i", i);
+            }
+            store.checkpoint();
+            dir.addChild("after");
+        }
+        assertTrue(Files.exists(root.resolve("snapshot")));
+        assertEquals(1, listLogs(root).size());
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            Node dir = store.getRoot().getChild("dir");
+            assertEquals(101, countChildren(dir));
+            assertEquals(57, dir.getChild("n57").getProperties().get("i"));
+        }
+    }
+
+    @Test
+    public void testTornLogTailIsDiscarded() throws Exception {
+        Path root = folder.getRoot().toPath();
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            store.getRoot().addChild("a");
+        }
+        Path log = listLogs(root).get(0);
+        Files.write(log, new byte[] { 0, 0, 1, 0, 5, 5 }, StandardOpenOption.APPEND);
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            store.getRoot().getChild("a");
+            store.getRoot().addChild("b");
+        }
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            store.getRoot().getChild("a");
+            store.getRoot().getChild("b");
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        Path root = folder.getRoot().toPath();
+        int threads = 8;
+        int perThread = 50;
+        try (FileNodeStore store = new FileNodeStore(root, 100)) {
+            Node dir = store.getRoot().addChild("dir");
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = Lists.newArrayList();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        dir.addChild(thread + "-" + i).setProperty("thread", thread);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+        }
+
+        try (FileNodeStore store = new FileNodeStore(root)) {
+            assertEquals(threads * perThread, countChildren(store.getRoot().getChild("dir")));
+        }
+    }
+
+    private static int countChildren(Node node) {
+        int count = 0;
+        for (Iterator<Node> i = node.getChildIterator(); i.hasNext(); i.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static List<Path> listLogs(Path root) throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,665 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.nodestore;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryNodeStoreTest {
+    private InMemoryNodeStore nodeStore;
+    private Node root;
+
+    @Before
+    public void setup() {
+        nodeStore = new InMemoryNodeStore();
+        root = nodeStore.getRoot();
+    }
+
+    @Test
+    public void testResolve() throws NodeNotFoundException {
+        Node d = root.addChild("a").addChild("b").addChild("c").addChild("d");
+
+        assertEquals(d, nodeStore.resolve("/a/b/c/d").get());
+        assertEquals(d, nodeStore.resolve("/a/b/c/d").get());
+        assertEquals(d, nodeStore.resolve("a//b/./c/d/").get());
+        assertEquals(d.getParent().get(), nodeStore.resolve("/a/b/c/d/..").get());
+        assertEquals(root, nodeStore.resolve("/").get());
+        assertFalse(nodeStore.resolve("/a/b/x").isPresent());
+
+        Node b = nodeStore.resolve("/a/b").get();
+        assertEquals(d, b.resolve("c/d").get());
+        assertEquals(b, d.resolve("../..").get());
+        assertEquals(b, b.resolve("").get());
+        root.getChild("a").deleteChild("b");
+        assertFalse(b.resolve("c/d").isPresent());
+    }
+
+    @Test
+    public void testResolveAfterDelete() {
+        Node b = root.addChild("a").addChild("b");
+        b.addChild("c");
+        assertTrue(nodeStore.resolve("/a/b/c").isPresent());
+
+        Node y = root.addChild("x").addChild("y");
+        assertEquals(y, nodeStore.resolve("/x/y").get());
+        root.deleteChild("a");
+        assertEquals(y, nodeStore.resolve("/x/y").get());
+        assertEquals("/x/y", y.getFullName());
+        assertFalse(nodeStore.resolve("/a/b/c").isPresent());
+        assertFalse(nodeStore.resolve("/a/b").isPresent());
+
+        Node c = root.addChild("a").addChild("b").addChild("c");
+        assertEquals(c, nodeStore.resolve("/a/b/c").get());
+    }
+
+    @Test
+    public void testResolveAfterReplace() {
+        root.addChild("a");
+        Node first = nodeStore.resolve("/a").get();
+        Node second = root.addChild("a");
+
+        assertTrue(first != second);
+        assertEquals(second, nodeStore.resolve("/a").get());
+    }
+
+    @Test
+    public void testInvalidNames() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        for (String name : new String[] { "", ".", "..", "x/y", "/" }) {
+            try {
+                root.addChild(name);
+                fail(name);
+            }
+            catch (IllegalArgumentException e) { }
+            try {
+                a.moveTo(root, name);
+                fail(name);
+            }
+            catch (IllegalArgumentException e) { }
+            try {
+                a.cloneTo(root, name);
+                fail(name);
+            }
+            catch (IllegalArgumentException e) { }
+        }
+        assertEquals(1, root.getChildCount());
+        assertEquals("/a", a.getFullName());
+    }
+
+    @Test
+    public void testMove() throws NodeNotFoundException {
+        Node b = root.addChild("a").addChild("b");
+        Node d = b.addChild("c").addChild("d");
+        Node x = root.addChild("x");
+        assertEquals(d, nodeStore.resolve("/a/b/c/d").get());
+
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            b.moveTo(x, "moved");
+
+            assertEquals("/x/moved/c/d", d.getFullName());
+            assertEquals("moved", b.getSimpleName());
+            assertEquals(x, b.getParent().get());
+            assertEquals(d, nodeStore.resolve("/x/moved/c/d").get());
+            assertFalse(nodeStore.resolve("/a/b/c/d").isPresent());
+            assertEquals(0, root.getChild("a").getChildCount());
+            assertEquals(1, x.getChildCount());
+
+            Node snapshotD = snapshot.resolve("/a/b/c/d").get();
+            assertEquals("/a/b/c/d", snapshotD.getFullName());
+            assertEquals("a", snapshot.resolve("/a/b").get().getParent().get().getSimpleName());
+            assertFalse(snapshot.resolve("/x/moved").isPresent());
+        }
+    }
+
+    @Test
+    public void testMoveReplacesTarget() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        Node replaced = root.addChild("b");
+        a.moveTo(root, "b");
+
+        assertEquals(a, root.getChild("b"));
+        assertEquals(1, root.getChildCount());
+        assertFalse(nodeStore.resolve("/a").isPresent());
+        assertFalse(replaced.resolve("").isPresent());
+    }
+
+    @Test
+    public void testWatchMoveReplacingTarget() throws NodeNotFoundException {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        Node a = store.getRoot().addChild("a");
+        store.getRoot().addChild("b");
+        List<String> changes = Lists.newArrayList();
+        store.watch(store.getRoot(), store.getChangeSequence(), change -> changes.add(change.getType() + " " + change.getPath()));
+        a.moveTo(store.getRoot(), "b");
+
+        assertEquals(Lists.newArrayList("NODE_DELETED /a", "NODE_DELETED /b", "NODE_ADDED /b"), changes);
+    }
+
+    @Test
+    public void testMoveKeepsOtherPaths() throws NodeNotFoundException {
+        Node d = root.addChild("a").addChild("b").addChild("d");
+        Node e = root.addChild("c").addChild("e");
+        assertEquals("/a/b/d", d.getFullName());
+        assertEquals("/c/e", e.getFullName());
+
+        root.getChild("a").moveTo(root, "z");
+        assertEquals("/c/e", e.getFullName());
+        assertEquals("/z/b/d", d.getFullName());
+        e.moveTo(d, "e");
+        assertEquals("/z/b/d/e", e.getFullName());
+        assertEquals(e, nodeStore.resolve("/z/b/d/e").get());
+        assertFalse(nodeStore.resolve("/c/e").isPresent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMoveBelowItself() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        a.moveTo(a.addChild("b"), "a");
+    }
+
+    @Test(expected = NodeNotFoundException.class)
+    public void testMoveDeletedNode() throws NodeNotFoundException {
+        Node b = root.addChild("a").addChild("b");
+        root.deleteChild("a");
+        b.moveTo(root, "b");
+    }
+
+    @Test
+    public void testCloneSubtree() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        Node b = a.addChild("b");
+        b.setProperty("owner", "alice");
+        Content content = new Content("b.txt", 1);
+        b.setContent(content);
+        a.addChild("c").addChild("d");
+
+        Node copy = a.cloneTo(root, "copy");
+        assertEquals("/copy", copy.getFullName());
+        assertEquals(2, copy.getChildCount());
+        assertEquals("alice", copy.resolve("b").get().getProperties().get("owner"));
+        assertTrue(copy.resolve("c/d").isPresent());
+
+        copy.getChild("b").setProperty("owner", "bob");
+        b.setProperty("extra", "value");
+        copy.getChild("c").deleteChild("d");
+        a.addChild("e");
+        assertEquals("alice", b.getProperties().get("owner"));
+        assertFalse(copy.getChild("b").getProperties().containsKey("extra"));
+        assertTrue(root.resolve("a/c/d").isPresent());
+        assertFalse(copy.resolve("e").isPresent());
+
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            assertEquals("bob", snapshot.resolve("/copy/b").get().getProperties().get("owner"));
+        }
+
+        assertFalse(nodeStore.releaseContent(content));
+        assertTrue(nodeStore.releaseContent(content));
+    }
+
+    @Test
+    public void testCloneKeepsDeletedSource() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        a.addChild("b").addChild("c").setProperty("key", "value");
+        Node copy = a.cloneTo(root, "copy");
+        root.deleteChild("a");
+
+        assertEquals("value", copy.resolve("b/c").get().getProperties().get("key"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCloneBelowItself() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        a.cloneTo(a.addChild("b"), "copy");
+    }
+
+    @Test
+    public void testSnapshotIsPointInTime() throws NodeNotFoundException {
+        Node a = root.addChild("a");
+        a.setProperty("key", "before");
+        root.addChild("b");
+
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            a.setProperty("key", "after");
+            a.setContent(new Content("a.txt", 1));
+            root.addChild("c");
+            root.deleteChild("b");
+
+            Node snapshotA = snapshot.getRoot().getChild("a");
+            assertEquals("before", snapshotA.getProperties().get("key"));
+            assertFalse(snapshotA.getContent().isPresent());
+            assertTrue(snapshot.resolve("/b").isPresent());
+            assertFalse(snapshot.resolve("/c").isPresent());
+            assertEquals(2, Iterators.size(snapshot.getRoot().getChildIterator()));
+            assertEquals(snapshot.getRoot(), snapshotA.getParent().get());
+
+            assertEquals("after", a.getProperties().get("key"));
+            assertFalse(nodeStore.resolve("/b").isPresent());
+            assertEquals(2, Iterators.size(root.getChildIterator()));
+        }
+    }
+
+    @Test
+    public void testSnapshotIsReadOnly() {
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            snapshot.getRoot().addChild("a");
+            fail("Expected UnsupportedOperationException");
+        }
+        catch (UnsupportedOperationException e) { }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedSnapshotCannotBeRead() {
+        NodeStoreSnapshot snapshot = nodeStore.snapshot();
+        snapshot.close();
+        snapshot.getRoot();
+    }
+
+    @Test
+    public void testHistoryReleasedAfterSnapshotCloses() {
+        Node a = root.addChild("a");
+        a.setProperty("key", 1);
+        NodeStoreSnapshot snapshot = nodeStore.snapshot();
+        a.setProperty("key", 2);
+        assertEquals(1, InMemoryNodeStore.record(a).state.previous.properties.get("key"));
+
+        snapshot.close();
+        a.setProperty("key", 3);
+        assertNull(InMemoryNodeStore.record(a).state.previous);
+    }
+
+    @Test
+    public void testBatch() throws NodeNotFoundException {
+        root.addChild("old");
+        NodeBatch batch = nodeStore.batch(root).addChild("dir");
+        for (int i = 0; i < 100; i++) {
+            batch.addChild("dir/c" + i).setProperty("dir/c" + i, "i", i);
+        }
+        batch.setContent("dir/c7", new Content("c7.txt", 7))
+                .deleteProperty("dir/c8", "i")
+                .deleteChild("old")
+                .commit();
+
+        Node dir = nodeStore.resolve("/dir").get();
+        assertEquals(100, Iterators.size(dir.getChildIterator()));
+        assertEquals(42, nodeStore.resolve("/dir/c42").get().getProperties().get("i"));
+        assertTrue(nodeStore.resolve("/dir/c7").get().getContent().isPresent());
+        assertTrue(nodeStore.resolve("/dir/c8").get().getProperties().isEmpty());
+        assertFalse(nodeStore.resolve("/old").isPresent());
+        assertEquals(dir.getCreated(), dir.getLastModified());
+        assertEquals(dir.getCreated(), nodeStore.resolve("/dir/c99").get().getLastModified());
+        assertEquals(dir.getCreated(), root.getLastModified());
+    }
+
+    @Test
+    public void testFailedBatchChangesNothing() {
+        root.addChild("a");
+        try {
+            nodeStore.batch(root)
+                    .addChild("b")
+                    .setProperty("a", "key", "value")
+                    .deleteChild("a")
+                    .setProperty("a/x", "key", "value")
+                    .commit();
+            fail("Expected NodeNotFoundException");
+        }
+        catch (NodeNotFoundException e) { }
+
+        assertFalse(nodeStore.resolve("/b").isPresent());
+        assertTrue(nodeStore.resolve("/a").get().getProperties().isEmpty());
+    }
+
+    @Test
+    public void testHashIndex() {
+        Node dir = root.addChild("dir");
+        Node a = dir.addChild("a");
+        Node b = dir.addChild("b");
+        a.setProperty("owner", "alice");
+        nodeStore.createIndex("owner", PropertyIndex.Type.HASH);
+        b.setProperty("owner", "alice");
+        dir.addChild("c").setProperty("owner", "bob");
+
+        assertEquals(Sets.newHashSet(a, b), Sets.newHashSet(nodeStore.findNodes("owner", "alice")));
+
+        a.setProperty("owner", "bob");
+        assertEquals(Sets.newHashSet(b), Sets.newHashSet(nodeStore.findNodes("owner", "alice")));
+
+        b.deleteProperty("owner");
+        assertFalse(nodeStore.findNodes("owner", "alice").hasNext());
+
+        root.deleteChild("dir");
+        assertFalse(nodeStore.findNodes("owner", "bob").hasNext());
+    }
+
+    @Test
+    public void testSortedIndex() {
+        nodeStore.createIndex("size", PropertyIndex.Type.SORTED);
+        for (int i = 0; i < 10; i++) {
+            root.addChild("n" + i).setProperty("size", i * 10);
+        }
+        root.addChild("big").setProperty("size", 1000L);
+
+        assertEquals(3, Iterators.size(nodeStore.findNodes("size", 20, 50)));
+        assertEquals(2, Iterators.size(nodeStore.findNodes("size", 90L, null)));
+        assertEquals(1, Iterators.size(nodeStore.findNodes("size", 1000)));
+    }
+
+    @Test
+    public void testFindWithoutIndex() {
+        root.addChild("a").addChild("b").setProperty("owner", "alice");
+        root.addChild("c").setProperty("owner", "bob");
+
+        assertEquals(nodeStore.resolve("/a/b").get(), Iterators.getOnlyElement(nodeStore.findNodes("owner", "alice")));
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            assertEquals("/a/b", Iterators.getOnlyElement(snapshot.findNodes("owner", "alice")).getFullName());
+        }
+    }
+
+    @Test
+    public void testTypedProperties() {
+        Node a = root.addChild("a");
+        a.setLongProperty("size", 42L);
+        a.setDoubleProperty("ratio", 0.5);
+        a.setBooleanProperty("hidden", true);
+        a.setProperty("count", 7);
+        a.setProperty("owner", "alice");
+
+        assertEquals(42L, a.getLongProperty("size", -1L));
+        assertEquals(0.5, a.getDoubleProperty("ratio", -1.0), 0.0);
+        assertTrue(a.getBooleanProperty("hidden", false));
+        assertEquals(7L, a.getLongProperty("count", -1L));
+        assertEquals(-1L, a.getLongProperty("owner", -1L));
+        assertEquals(-1L, a.getLongProperty("missing", -1L));
+
+        ImmutableMap<String, Object> properties = a.getProperties();
+        assertEquals(42L, properties.get("size"));
+        assertEquals(Integer.valueOf(7), properties.get("count"));
+        assertEquals(Boolean.TRUE, properties.get("hidden"));
+        assertEquals("alice", properties.get("owner"));
+
+        a.deleteProperty("size");
+        assertEquals(-1L, a.getLongProperty("size", -1L));
+        assertEquals(4, a.getProperties().size());
+    }
+
+    @Test
+    public void testPropertySetsShareShape() {
+        PropertySet a = PropertySet.EMPTY.withLong("size", 1L).with("owner", "alice");
+        PropertySet b = PropertySet.EMPTY.with("owner", "bob").withLong("size", 2L);
+        assertSame(a.shape(), b.shape());
+        assertNotSame(a.shape(), a.withDouble("size", 1.0).shape());
+    }
+
+    @Test
+    public void testDeleteReclaimsSubtree() {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        List<String> released = Lists.newArrayList();
+        store.setContentReleaser(content -> released.add(content.getCommonName()));
+        store.createIndex("owner", PropertyIndex.Type.HASH);
+
+        Node dir = store.getRoot().addChild("tmp");
+        Node a = dir.addChild("a");
+        a.setContent(new Content("a.txt", 1));
+        a.setProperty("owner", "alice");
+        Node b = a.addChild("b");
+        b.setContent(new Content("b.txt", 2));
+
+        try (NodeStoreSnapshot snapshot = store.snapshot()) {
+            store.getRoot().deleteChild("tmp");
+            assertTrue(released.isEmpty());
+            assertEquals("a.txt", snapshot.resolve("/tmp/a").get().getContent().get().getCommonName());
+        }
+
+        assertEquals(Sets.newHashSet("a.txt", "b.txt"), Sets.newHashSet(released));
+        assertTrue(a.getProperties().isEmpty());
+        assertFalse(b.getContent().isPresent());
+        assertFalse(a.hasChildren());
+        assertFalse(store.findNodes("owner", "alice").hasNext());
+    }
+
+    @Test
+    public void testWritesAfterReclaimAreReclaimed() {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        List<String> released = Lists.newArrayList();
+        store.setContentReleaser(content -> released.add(content.getCommonName()));
+        store.createIndex("owner", PropertyIndex.Type.HASH);
+
+        Node a = store.getRoot().addChild("tmp").addChild("a");
+        store.getRoot().deleteChild("tmp");
+        assertTrue(((InMemoryNode) a).reclaimed);
+
+        a.setProperty("owner", "alice");
+        a.setContent(new Content("a.txt", 1));
+        Node b = a.addChild("b");
+        b.setProperty("owner", "bob");
+        b.setContent(new Content("b.txt", 2));
+
+        assertEquals(Sets.newHashSet("a.txt", "b.txt"), Sets.newHashSet(released));
+        assertTrue(a.getProperties().isEmpty());
+        assertTrue(b.getProperties().isEmpty());
+        assertTrue(((InMemoryNode) b).reclaimed);
+    }
+
+    @Test
+    public void testListChildren() {
+        Node dir = root.addChild("dir");
+        for (int i = 0; i < 25; i++) {
+            dir.addChild(String.format("f%02d", i));
+        }
+        dir.deleteChild("f10");
+
+        List<String> names = Lists.newArrayList();
+        String token = null;
+        int pages = 0;
+        do {
+            ChildPage page = dir.listChildren(token, 10);
+            assertTrue(page.getChildren().size() <= 10);
+            page.getChildren().forEach(child -> names.add(child.getSimpleName()));
+            token = page.getContinuationToken().orElse(null);
+            pages++;
+        } while (null != token);
+
+        assertEquals(3, pages);
+        assertEquals(24, names.size());
+        assertEquals("f00", names.get(0));
+        assertEquals("f11", names.get(10));
+        assertEquals("f24", names.get(23));
+        assertFalse(dir.listChildren("f24", 10).getContinuationToken().isPresent());
+        assertTrue(dir.listChildren("f24", 10).getChildren().isEmpty());
+    }
+
+    @Test
+    public void testChildCount() {
+        Node dir = root.addChild("dir");
+        assertEquals(0, dir.getChildCount());
+        assertFalse(dir.hasChildren());
+
+        dir.addChild("a");
+        dir.addChild("b");
+        dir.addChild("a");
+        assertEquals(2, dir.getChildCount());
+
+        try (NodeStoreSnapshot snapshot = nodeStore.snapshot()) {
+            assertTrue(dir.deleteChild("a"));
+            assertFalse(dir.deleteChild("a"));
+            assertEquals(1, dir.getChildCount());
+            dir.addChild("a");
+            assertEquals(2, dir.getChildCount());
+            dir.deleteChild("a");
+            dir.deleteChild("b");
+            assertEquals(0, dir.getChildCount());
+            assertFalse(dir.hasChildren());
+
+            Node old = snapshot.resolve("/dir").get();
+            assertEquals(2, old.getChildCount());
+            assertEquals("b", old.listChildren("a", 1).getChildren().get(0).getSimpleName());
+        }
+    }
+
+    @Test
+    public void testWatch() {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        Node a = store.getRoot().addChild("a");
+        Node b = store.getRoot().addChild("b");
+        long start = store.getChangeSequence();
+
+        List<String> changes = Lists.newArrayList();
+        ChangeSubscription subscription = store.watch(a, start, change -> changes.add(change.getType() + " " + change.getPath()));
+        a.addChild("x").setProperty("k", "v");
+        b.addChild("y");
+        a.setContent(new Content("a.txt", 1));
+        a.deleteChild("x");
+
+        assertEquals(Lists.newArrayList("NODE_ADDED /a/x", "PROPERTY_SET /a/x", "CONTENT_SET /a", "NODE_DELETED /a/x"), changes);
+        assertEquals(store.getChangeSequence(), subscription.getLastDelivered());
+
+        subscription.close();
+        a.addChild("z");
+        assertEquals(4, changes.size());
+
+        List<Long> replayed = Lists.newArrayList();
+        store.watch(store.getRoot(), start, change -> replayed.add(change.getSequence())).close();
+        assertEquals(6, replayed.size());
+        assertEquals(start + 1, (long) replayed.get(0));
+    }
+
+    @Test
+    public void testWatchAncestorDeleted() {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        Node b = store.getRoot().addChild("a").addChild("b");
+        List<String> changes = Lists.newArrayList();
+        ChangeSubscription subscription = store.watch(b, store.getChangeSequence(), change -> changes.add(change.getType() + " " + change.getPath()));
+        store.getRoot().addChild("ab");
+        store.getRoot().deleteChild("ab");
+        store.getRoot().deleteChild("a");
+
+        assertEquals(Lists.newArrayList("NODE_DELETED /a"), changes);
+        assertTrue(subscription.isClosed());
+        assertEquals(store.getChangeSequence(), subscription.getLastDelivered());
+        store.getRoot().addChild("a").addChild("b").addChild("c");
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void testWatchAncestorMoved() throws NodeNotFoundException {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        Node a = store.getRoot().addChild("a");
+        Node b = a.addChild("b");
+        List<String> changes = Lists.newArrayList();
+        ChangeSubscription subscription = store.watch(b, store.getChangeSequence(), change -> changes.add(change.getType() + " " + change.getPath()));
+        b.addChild("c");
+        a.moveTo(store.getRoot(), "x");
+        b.addChild("d");
+
+        assertEquals(Lists.newArrayList("NODE_ADDED /a/b/c", "NODE_DELETED /a"), changes);
+        assertTrue(subscription.isClosed());
+    }
+
+    @Test
+    public void testWatchOverflow() {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor());
+        store.getRoot().addChild("unseen");
+        // Nothing is recorded before anyone could hold a position in the feed
+        assertEquals(0, store.getChangeSequence());
+        for (int i = 0; i < 40; i++) {
+            store.getRoot().addChild("n" + i);
+        }
+        long[] overflow = new long[2];
+        List<Long> sequences = Lists.newArrayList();
+        store.watch(store.getRoot(), 0, new ChangeListener() {
+            @Override
+            public void onChange(@NotNull final NodeChange change) {
+                sequences.add(change.getSequence());
+            }
+
+            @Override
+            public void onOverflow(long missedFrom, long resumeAt) {
+                overflow[0] = missedFrom;
+                overflow[1] = resumeAt;
+            }
+        });
+        assertEquals(1, overflow[0]);
+        assertEquals(25, overflow[1]);
+        assertEquals(16, sequences.size());
+        assertEquals(40L, (long) sequences.get(15));
+    }
+
+    @Test
+    public void testWatchConcurrentWriters() throws Exception {
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 1 << 16, MoreExecutors.directExecutor());
+        List<Long> sequences = Collections.synchronizedList(Lists.newArrayList());
+        store.watch(store.getRoot(), store.getChangeSequence(), change -> sequences.add(change.getSequence()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = Lists.newArrayList();
+            for (int t = 0; t < 4; t++) {
+                Node dir = store.getRoot().addChild("dir" + t);
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        dir.addChild("n" + i);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        assertEquals(store.getChangeSequence(), sequences.size());
+        for (int i = 0; i < sequences.size(); i++) {
+            assertEquals(i + 1, (long) sequences.get(i));
+        }
+    }
+
+    @Test
+    public void testClock() {
+        long[] time = { 1000L * 1000000000L };
+        InMemoryNodeStore store = new InMemoryNodeStore(100, 16, MoreExecutors.directExecutor(), () -> time[0]);
+        Node a = store.getRoot().addChild("a");
+        time[0] += 5000;
+        a.setLongProperty("size", 1L);
+
+        assertEquals(1000, a.getCreated().toEpochSecond());
+        assertEquals(0, a.getCreated().getNano());
+        assertEquals(5000, a.getLastModified().getNano());
+        assertEquals(a.getLastModified(), store.getRoot().getCreated().plusNanos(5000));
+    }
+}
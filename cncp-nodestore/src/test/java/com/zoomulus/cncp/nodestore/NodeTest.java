@@ -27,6 +27,9 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -118,6 +121,40 @@ public class NodeTest {
         }
     }
 
+    @Test
+    public void testConcurrentAddAndIterate() throws Exception {
+        int threads = 8;
+        int perThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int t = 0; t < threads; t++) {
+            String prefix = "t" + t + "-";
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    root.addChild(prefix + i);
+                }
+            }));
+        }
+        futures.add(executor.submit(() -> {
+            for (int i = 0; i < 100; i++) {
+                Iterator<Node> childIterator = root.getChildIterator();
+                while (childIterator.hasNext()) { childIterator.next(); }
+            }
+        }));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        int ctr = 0;
+        Iterator<Node> childIterator = root.getChildIterator();
+        while (childIterator.hasNext()) {
+            childIterator.next();
+            ctr++;
+        }
+        assertEquals(threads * perThread, ctr);
+    }
+
     @Test
     public void testDeleteChild() throws NodeNotFoundException {
         assertFalse(root.deleteChild("c1"));
@@ -17,18 +17,22 @@
 
 package com.zoomulus.cncp.shell.commands;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.zoomulus.cli.Command;
 import com.zoomulus.cncp.filesystem.FileSystem;
+import com.zoomulus.cncp.nodestore.ChildPage;
+import com.zoomulus.cncp.nodestore.Node;
 import org.jetbrains.annotations.NotNull;
 
 import javax.inject.Inject;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.Optional;
 
 public class ListCommand implements Command {
+    private static final int PAGE_SIZE = 1000;
+
     private final FileSystem fs;
 
     @Inject
@@ -56,8 +60,21 @@ public class ListCommand implements Command {
                        @NotNull List<String> args,
                        @NotNull PrintStream out,
                        @NotNull PrintStream err) {
-        out.println("FS is " + fs==null?"null":"not null");
-        out.println("args is " + Joiner.on(" ").join(args));
-        return true;
+        String path = args.isEmpty() ? fs.getCwd() : args.get(0);
+        try {
+            String token = null;
+            do {
+                ChildPage page = fs.list(path, token, PAGE_SIZE);
+                for (Node child : page.getChildren()) {
+                    out.println(child.getSimpleName());
+                }
+                token = page.getContinuationToken().orElse(null);
+            } while (null != token);
+            return true;
+        }
+        catch (IOException e) {
+            err.println(String.format("ls: %s: %s", path, e.getMessage()));
+            return false;
+        }
     }
 }
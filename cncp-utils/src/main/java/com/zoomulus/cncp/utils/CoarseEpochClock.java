@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.utils;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that samples another clock at a fixed interval and answers reads
+ * from the last sample, trading resolution for a single volatile read.  The
+ * time it reports is never earlier than the last time it reported.
+ */
+public class CoarseEpochClock implements EpochClock, Closeable {
+    private final EpochClock source;
+    private final ScheduledExecutorService ticker;
+    private volatile long nanos;
+
+    public CoarseEpochClock(long resolution, TimeUnit unit) {
+        this(EpochClock.system(), resolution, unit);
+    }
+
+    public CoarseEpochClock(EpochClock source, long resolution, TimeUnit unit) {
+        if (resolution < 1) {
+            throw new IllegalArgumentException(String.format("Invalid clock resolution %d %s", resolution, unit));
+        }
+        this.source = source;
+        nanos = source.epochNanos();
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coarse-epoch-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, resolution, resolution, unit);
+    }
+
+    private void tick() {
+        long now = source.epochNanos();
+        if (now > nanos) {
+            nanos = now;
+        }
+    }
+
+    @Override
+    public long epochNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zoomulus.cncp.utils;
+
+/**
+ * A source of wall-clock time as epoch offsets.  Timestamps are kept as
+ * longs internally and only turned into date-time objects when asked for.
+ * The system clock still reads through a short-lived {@link java.time.Instant},
+ * which the JIT can usually eliminate; {@link CoarseEpochClock} reads a cached
+ * value and allocates nothing.
+ */
+public interface EpochClock {
+    /**
+     * The current time in nanoseconds since the epoch.
+     */
+    long epochNanos();
+
+    /**
+     * The current time in milliseconds since the epoch.
+     */
+    default long epochMillis() {
+        return epochNanos() / 1000000L;
+    }
+
+    /**
+     * The clock backed by the system clock at full resolution.
+     */
+    static EpochClock system() {
+        return SystemEpochClock.INSTANCE;
+    }
+}